@@ -0,0 +1,74 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap.benchmark;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+import javax.naming.spi.InitialContextFactory;
+import javax.naming.spi.NamingManager;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates contexts of default LDAP provider, and counts requests sent through them, so that plugin is measured from outside:
+ * binds of new connections and reconnections, searches and reads of entries.
+ * Used by setting {@code ldap.contextFactoryClass}.
+ */
+public final class CountingContextFactory implements InitialContextFactory {
+
+  private static final String DELEGATE = "com.sun.jndi.ldap.LdapCtxFactory";
+  private static final AtomicLong REQUESTS = new AtomicLong();
+
+  public Context getInitialContext(Hashtable<?, ?> environment) throws NamingException {
+    Hashtable<Object, Object> delegateEnvironment = new Hashtable<Object, Object>(environment);
+    delegateEnvironment.put(Context.INITIAL_CONTEXT_FACTORY, DELEGATE);
+    // provider is looked up by naming manager, as its package is not accessible to others on recent versions of Java
+    final Context delegate = NamingManager.getInitialContext(delegateEnvironment);
+    REQUESTS.incrementAndGet();
+    return (Context) Proxy.newProxyInstance(CountingContextFactory.class.getClassLoader(), new Class<?>[] {LdapContext.class},
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+          String name = method.getName();
+          if ("reconnect".equals(name) || "search".equals(name) || "getAttributes".equals(name)) {
+            REQUESTS.incrementAndGet();
+          }
+          try {
+            return method.invoke(delegate, args);
+          } catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+        }
+      });
+  }
+
+  /**
+   * @return number of requests sent through contexts of this factory since start of JVM
+   */
+  public static long getRequestCount() {
+    return REQUESTS.get();
+  }
+
+}
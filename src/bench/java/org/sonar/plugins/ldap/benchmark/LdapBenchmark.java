@@ -0,0 +1,135 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.config.Settings;
+import org.sonar.api.security.UserDetails;
+import org.sonar.plugins.ldap.LdapAutodiscovery;
+import org.sonar.plugins.ldap.LdapRealm;
+import org.sonar.plugins.ldap.LdapSettingsManager;
+import org.sonar.plugins.ldap.server.ApacheDS;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of operations made by Sonar on every login, against embedded ApacheDS.
+ * Plugin is configured through {@link LdapRealm}, as in Sonar, with one or two servers, and with or without caches.
+ * In configuration with two servers, user is found on the second one, which is the worst case.
+ * <p>
+ * Number of threads is set by {@link LdapBenchmarkRunner}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LdapBenchmark {
+
+  private static final String PASSWORD = "secret1";
+
+  @Param({"single", "multiple"})
+  public String servers;
+
+  @Param({"false", "true"})
+  public boolean cached;
+
+  private ApacheDS exampleServer;
+  private ApacheDS infosupportServer;
+  private LdapSettingsManager settingsManager;
+  private LdapRealm realm;
+  private String login;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    exampleServer = start("example.org", "dc=example,dc=org", "/users.example.org.ldif");
+    Settings settings = new Settings();
+    if ("multiple".equals(servers)) {
+      infosupportServer = start("infosupport.com", "dc=infosupport,dc=com", "/users.infosupport.com.ldif");
+      settings.setProperty("ldap.servers", "example,infosupport")
+        .setProperty("ldap.example.url", exampleServer.getUrl())
+        .setProperty("ldap.example.user.baseDn", "ou=users,dc=example,dc=org")
+        .setProperty("ldap.example.group.baseDn", "ou=groups,dc=example,dc=org")
+        .setProperty("ldap.infosupport.url", infosupportServer.getUrl())
+        .setProperty("ldap.infosupport.user.baseDn", "ou=users,dc=infosupport,dc=com")
+        .setProperty("ldap.infosupport.group.baseDn", "ou=groups,dc=infosupport,dc=com");
+      login = "robby";
+    } else {
+      settings.setProperty("ldap.url", exampleServer.getUrl())
+        .setProperty("ldap.user.baseDn", "ou=users,dc=example,dc=org")
+        .setProperty("ldap.group.baseDn", "ou=groups,dc=example,dc=org");
+      login = "godin";
+    }
+    if (cached) {
+      settings.setProperty("ldap.cache.authentication.ttl", 300)
+        .setProperty("ldap.cache.user.ttl", 300)
+        .setProperty("ldap.cache.groups.ttl", 300);
+    }
+    settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    realm = new LdapRealm(settingsManager);
+    realm.init();
+  }
+
+  private static ApacheDS start(String domain, String baseDn, String ldif) throws Exception {
+    ApacheDS server = ApacheDS.start(domain, baseDn);
+    server.importLdif(LdapBenchmark.class.getResourceAsStream(ldif));
+    return server;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    realm.stop();
+    settingsManager.stop();
+    exampleServer.stop();
+    if (infosupportServer != null) {
+      infosupportServer.stop();
+    }
+  }
+
+  @Benchmark
+  public boolean authenticate() {
+    return realm.getLoginPasswordAuthenticator().authenticate(login, PASSWORD);
+  }
+
+  @Benchmark
+  public UserDetails getUserDetails() {
+    return realm.getUsersProvider().doGetUserDetails(login);
+  }
+
+  @Benchmark
+  public Collection<String> getGroups() {
+    return realm.getGroupsProvider().doGetGroups(login);
+  }
+
+}
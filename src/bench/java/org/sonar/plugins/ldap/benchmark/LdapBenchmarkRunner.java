@@ -0,0 +1,48 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap.benchmark;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs benchmarks with 1, 8 and 64 threads, to see how plugin behaves from a single login up to login storm.
+ * Arguments are usual options of JMH, for example regular expression to select benchmarks, or "-t 8" to use only specified number of threads:
+ * <pre>
+ * mvn -Pbenchmarks integration-test -Djmh.args="-p cached=true getGroups"
+ * </pre>
+ */
+public final class LdapBenchmarkRunner {
+
+  private static final int[] THREADS = {1, 8, 64};
+
+  private LdapBenchmarkRunner() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions options = new CommandLineOptions(args);
+    int[] threads = options.getThreads().hasValue() ? new int[] {options.getThreads().get()} : THREADS;
+    for (int count : threads) {
+      new Runner(new OptionsBuilder().parent(options).threads(count).build()).run();
+    }
+  }
+
+}
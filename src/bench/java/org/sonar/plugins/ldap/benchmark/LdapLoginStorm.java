@@ -0,0 +1,294 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap.benchmark;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.ldap.LdapAutodiscovery;
+import org.sonar.plugins.ldap.LdapRealm;
+import org.sonar.plugins.ldap.LdapSettingsManager;
+import org.sonar.plugins.ldap.server.ApacheDS;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays a storm of logins against {@link LdapRealm}: thousands of generated users log in at once,
+ * and every login makes the same calls as Sonar, i.e. authentication, then details and groups of user.
+ * Logins of different users are interleaved in random, but reproducible, order.
+ * <p>
+ * Report contains latency histograms of every call and of whole login, rate of errors, and number of LDAP requests per login,
+ * counted by {@link CountingContextFactory}, so that reports of different versions of plugin can be compared.
+ * Options, all optional, leading dashes may be omitted:
+ * <pre>
+ * --users=5000      number of generated users
+ * --groups=50       number of generated groups, every user is member of 3 of them
+ * --logins=2        number of logins of every user
+ * --threads=64      number of concurrent logins
+ * --virtual         use a virtual thread per login (Java 21 or upper), instead of threads
+ * --cached          enable caches of authentications, user DNs and groups
+ * --report=FILE     also write report to file
+ * </pre>
+ * For example:
+ * <pre>
+ * mvn -Pbenchmarks test-compile exec:exec@login-storm -Dstorm.args="--users=10000 --virtual --report=target/login-storm.txt"
+ * </pre>
+ */
+public final class LdapLoginStorm {
+
+  private static final String BASE_DN = "dc=example,dc=org";
+  private static final String PASSWORD = "storm";
+  private static final int GROUPS_PER_USER = 3;
+
+  private final Map<String, String> options;
+  private final Histogram authentication = new ConcurrentHistogram(3);
+  private final Histogram details = new ConcurrentHistogram(3);
+  private final Histogram groups = new ConcurrentHistogram(3);
+  private final Histogram total = new ConcurrentHistogram(3);
+  private final AtomicLong authenticationErrors = new AtomicLong();
+  private final AtomicLong detailsErrors = new AtomicLong();
+  private final AtomicLong groupsErrors = new AtomicLong();
+
+  private LdapLoginStorm(Map<String, String> options) {
+    this.options = options;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = Maps.newHashMap();
+    for (String arg : args) {
+      String option = arg.replaceFirst("^--", "");
+      int i = option.indexOf('=');
+      options.put(i < 0 ? option : option.substring(0, i), i < 0 ? "true" : option.substring(i + 1));
+    }
+    new LdapLoginStorm(options).run();
+    // threads of embedded server are not daemons
+    System.exit(0);
+  }
+
+  private int option(String name, int defaultValue) {
+    return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+  }
+
+  private void run() throws Exception {
+    int users = option("users", 5000);
+    int groupCount = option("groups", 50);
+    int loginsPerUser = option("logins", 2);
+    int threads = option("threads", 64);
+    boolean cached = options.containsKey("cached");
+    if (groupCount < GROUPS_PER_USER) {
+      throw new IllegalArgumentException("At least " + GROUPS_PER_USER + " groups required");
+    }
+
+    ApacheDS server = ApacheDS.start("example.org", BASE_DN);
+    try {
+      server.importLdif(LdapLoginStorm.class.getResourceAsStream("/users.example.org.ldif"));
+      server.importLdif(new ByteArrayInputStream(generateLdif(users, groupCount).getBytes(Charsets.UTF_8.name())));
+
+      Settings settings = new Settings()
+        .setProperty("ldap.url", server.getUrl())
+        .setProperty("ldap.contextFactoryClass", CountingContextFactory.class.getName())
+        .setProperty("ldap.user.baseDn", "ou=users," + BASE_DN)
+        .setProperty("ldap.group.baseDn", "ou=groups," + BASE_DN);
+      if (cached) {
+        settings.setProperty("ldap.cache.authentication.ttl", 300)
+          .setProperty("ldap.cache.user.ttl", 300)
+          .setProperty("ldap.cache.groups.ttl", 300);
+      }
+      LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+      LdapRealm realm = new LdapRealm(settingsManager);
+      long start = System.nanoTime();
+      realm.init();
+      long initNanos = System.nanoTime() - start;
+
+      List<String> logins = Lists.newArrayList();
+      for (int i = 0; i < loginsPerUser; i++) {
+        for (int user = 0; user < users; user++) {
+          logins.add(login(user));
+        }
+      }
+      Collections.shuffle(logins, new Random(42));
+
+      long operationsBefore = CountingContextFactory.getRequestCount();
+      ExecutorService executor = createExecutor(threads);
+      start = System.nanoTime();
+      for (String login : logins) {
+        submit(executor, realm, login);
+      }
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.DAYS);
+      long durationNanos = System.nanoTime() - start;
+      long operations = CountingContextFactory.getRequestCount() - operationsBefore;
+
+      realm.stop();
+      settingsManager.stop();
+      report(users, logins.size(), executor, threads, cached, initNanos, durationNanos, operations);
+    } finally {
+      server.stop();
+    }
+  }
+
+  private void submit(ExecutorService executor, final LdapRealm realm, final String login) {
+    executor.execute(new Runnable() {
+      public void run() {
+        long start = System.nanoTime();
+        try {
+          if (!realm.getLoginPasswordAuthenticator().authenticate(login, PASSWORD)) {
+            authenticationErrors.incrementAndGet();
+            return;
+          }
+        } catch (RuntimeException e) {
+          authenticationErrors.incrementAndGet();
+          return;
+        } finally {
+          record(authentication, start);
+        }
+        long detailsStart = System.nanoTime();
+        try {
+          if (realm.getUsersProvider().doGetUserDetails(login) == null) {
+            detailsErrors.incrementAndGet();
+          }
+        } catch (RuntimeException e) {
+          detailsErrors.incrementAndGet();
+        } finally {
+          record(details, detailsStart);
+        }
+        long groupsStart = System.nanoTime();
+        try {
+          if (realm.getGroupsProvider().doGetGroups(login).size() != GROUPS_PER_USER) {
+            groupsErrors.incrementAndGet();
+          }
+        } catch (RuntimeException e) {
+          groupsErrors.incrementAndGet();
+        } finally {
+          record(groups, groupsStart);
+        }
+        record(total, start);
+      }
+    });
+  }
+
+  private static void record(Histogram histogram, long start) {
+    histogram.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+  }
+
+  /**
+   * Uses virtual threads through reflection, so that harness is compiled and runs on older versions of Java.
+   */
+  private ExecutorService createExecutor(int threads) {
+    if (options.containsKey("virtual")) {
+      try {
+        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (NoSuchMethodException e) {
+        System.err.println("Virtual threads are not available in Java " + System.getProperty("java.version") + ", using " + threads + " threads");
+      } catch (Exception e) {
+        throw new IllegalStateException("Unable to create executor with virtual threads", e);
+      }
+    }
+    return Executors.newFixedThreadPool(threads);
+  }
+
+  private static String login(int user) {
+    return String.format("storm%05d", user);
+  }
+
+  /**
+   * @return users under "ou=users" and groups under "ou=groups", which exist in test LDIF
+   */
+  private static String generateLdif(int users, int groupCount) {
+    StringBuilder ldif = new StringBuilder();
+    for (int user = 0; user < users; user++) {
+      ldif.append("dn: cn=").append(login(user)).append(",ou=users,").append(BASE_DN).append('\n')
+        .append("objectClass: inetOrgPerson\nobjectClass: organizationalPerson\nobjectClass: person\nobjectClass: top\n")
+        .append("cn: ").append(login(user)).append('\n')
+        .append("sn: ").append(login(user)).append('\n')
+        .append("uid: ").append(login(user)).append('\n')
+        .append("mail: ").append(login(user)).append("@example.org\n")
+        .append("userpassword: ").append(PASSWORD).append("\n\n");
+    }
+    for (int group = 0; group < groupCount; group++) {
+      ldif.append("dn: cn=storm-group-").append(group).append(",ou=groups,").append(BASE_DN).append('\n')
+        .append("objectClass: groupOfUniqueNames\nobjectClass: top\n")
+        .append("cn: storm-group-").append(group).append('\n');
+      for (int user = 0; user < users; user++) {
+        if (isMember(user, group, groupCount)) {
+          ldif.append("uniqueMember: cn=").append(login(user)).append(",ou=users,").append(BASE_DN).append('\n');
+        }
+      }
+      ldif.append('\n');
+    }
+    return ldif.toString();
+  }
+
+  private static boolean isMember(int user, int group, int groupCount) {
+    for (int i = 0; i < GROUPS_PER_USER; i++) {
+      if ((user + i) % groupCount == group) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void report(int users, int logins, ExecutorService executor, int threads, boolean cached, long initNanos, long durationNanos,
+    long operations) throws Exception {
+    StringBuilder report = new StringBuilder();
+    boolean virtual = !(executor instanceof java.util.concurrent.ThreadPoolExecutor);
+    report.append(String.format(Locale.ENGLISH, "Login storm: %d users, %d logins, %s, caches %s%n",
+      users, logins, virtual ? "virtual threads" : threads + " threads", cached ? "enabled" : "disabled"));
+    report.append(String.format(Locale.ENGLISH, "Realm init: %d ms%n", TimeUnit.NANOSECONDS.toMillis(initNanos)));
+    double seconds = durationNanos / 1e9;
+    report.append(String.format(Locale.ENGLISH, "Duration: %.1f s, %.1f logins/s%n", seconds, logins / seconds));
+    report.append(String.format(Locale.ENGLISH, "LDAP requests: %d, %.2f per login%n%n", operations, (double) operations / logins));
+    report.append(String.format(Locale.ENGLISH, "%-15s %8s %8s %9s %9s %9s %9s %9s %9s%n",
+      "latency (ms)", "count", "errors", "mean", "p50", "p90", "p99", "p99.9", "max"));
+    appendRow(report, "authenticate", authentication, authenticationErrors.get());
+    appendRow(report, "details", details, detailsErrors.get());
+    appendRow(report, "groups", groups, groupsErrors.get());
+    appendRow(report, "login", total, authenticationErrors.get() + detailsErrors.get() + groupsErrors.get());
+    System.out.print(report);
+    if (options.containsKey("report")) {
+      Files.write(report, new File(options.get("report")), Charsets.UTF_8);
+    }
+  }
+
+  private static void appendRow(StringBuilder report, String name, Histogram histogram, long errors) {
+    report.append(String.format(Locale.ENGLISH, "%-15s %8d %8d %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, histogram.getTotalCount(), errors,
+      histogram.getMean() / 1000, millis(histogram, 50), millis(histogram, 90), millis(histogram, 99), millis(histogram, 99.9),
+      histogram.getMaxValue() / 1000.0));
+  }
+
+  private static double millis(Histogram histogram, double percentile) {
+    return histogram.getValueAtPercentile(percentile) / 1000.0;
+  }
+
+}
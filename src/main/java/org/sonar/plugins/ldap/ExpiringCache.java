@@ -0,0 +1,129 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Maps;
+
+import javax.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread-safe map with bounded size, which evicts least recently used entries and entries older than time to live.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+class ExpiringCache<K, V> {
+
+  private final long ttlNanos;
+  private final Ticker ticker;
+  private final Map<K, CacheEntry<V>> entries;
+
+  ExpiringCache(long ttlMs, int maxSize) {
+    this(ttlMs, maxSize, Ticker.systemTicker());
+  }
+
+  ExpiringCache(long ttlMs, int maxSize, Ticker ticker) {
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+    this.ticker = ticker;
+    this.entries = new LruMap<K, CacheEntry<V>>(maxSize);
+  }
+
+  /**
+   * @return value, or null if absent or expired
+   */
+  @Nullable
+  public synchronized V get(K key) {
+    CacheEntry<V> entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (ticker.read() - entry.created > ttlNanos) {
+      entries.remove(key);
+      return null;
+    }
+    return entry.value;
+  }
+
+  public synchronized void put(K key, V value) {
+    entries.put(key, new CacheEntry<V>(value, ticker.read()));
+  }
+
+  public synchronized void invalidate(K key) {
+    entries.remove(key);
+  }
+
+  public synchronized void invalidateAll() {
+    entries.clear();
+  }
+
+  /**
+   * Removes entries matching specified predicate, which is applied to keys and values while cache is locked.
+   */
+  public synchronized void invalidateAll(Predicate<? super Map.Entry<K, V>> predicate) {
+    Iterator<Map.Entry<K, CacheEntry<V>>> iterator = entries.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<K, CacheEntry<V>> entry = iterator.next();
+      if (predicate.apply(Maps.immutableEntry(entry.getKey(), entry.getValue().value))) {
+        iterator.remove();
+      }
+    }
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private static final class CacheEntry<V> {
+    private final V value;
+    private final long created;
+
+    CacheEntry(V value, long created) {
+      this.value = value;
+      this.created = created;
+    }
+  }
+
+  /**
+   * Access order gives LRU eviction.
+   */
+  private static final class LruMap<K, V> extends LinkedHashMap<K, V> {
+    private static final long serialVersionUID = 1L;
+
+    private final int maxSize;
+
+    LruMap(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+      return size() > maxSize;
+    }
+  }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.base.Ticker;
+import org.sonar.api.utils.SonarException;
+
+import javax.annotation.Nullable;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collection;
+
+/**
+ * Remembers successful authentications for a limited time, so that repeated logins do not hit LDAP.
+ * Passwords are never stored - only salted PBKDF2 hashes of them.
+ */
+public class LdapAuthenticationCache implements LdapChangeListener {
+
+  private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+  private static final int ITERATIONS = 10000;
+  private static final int SALT_LENGTH = 16;
+  private static final int HASH_LENGTH = 160;
+
+  private final SecureRandom random = new SecureRandom();
+  private final ExpiringCache<String, Verifier> verifiers;
+  private final long ttlMs;
+  private final int maxSize;
+
+  public LdapAuthenticationCache(long ttlMs, int maxSize) {
+    this(ttlMs, maxSize, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  LdapAuthenticationCache(long ttlMs, int maxSize, Ticker ticker) {
+    this.ttlMs = ttlMs;
+    this.maxSize = maxSize;
+    this.verifiers = new ExpiringCache<String, Verifier>(ttlMs, maxSize, ticker);
+  }
+
+  /**
+   * @return true if specified user was successfully authenticated with specified password within time to live
+   */
+  public boolean isAuthenticated(String login, @Nullable String password) {
+    if (password == null) {
+      return false;
+    }
+    Verifier verifier = verifiers.get(login);
+    return verifier != null && verifier.matches(password);
+  }
+
+  public void authenticated(String login, String password) {
+    verifiers.put(login, Verifier.create(random, password));
+  }
+
+  public void invalidate(String login) {
+    verifiers.invalidate(login);
+  }
+
+  /**
+   * Modified user might have changed password or have been disabled, so has to authenticate again.
+   */
+  public void usersChanged(String serverKey, Collection<String> logins) {
+    for (String login : logins) {
+      invalidate(login);
+    }
+  }
+
+  public void groupsChanged(String serverKey, Collection<String> dns) {
+    // authentication does not depend on groups
+  }
+
+  public void allChanged(String serverKey) {
+    verifiers.invalidateAll();
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+      .add("ttl", ttlMs)
+      .add("maxSize", maxSize)
+      .toString();
+  }
+
+  /**
+   * Salted PBKDF2 hash of a password.
+   */
+  static final class Verifier {
+    private final byte[] salt;
+    private final byte[] hash;
+
+    private Verifier(byte[] salt, byte[] hash) {
+      this.salt = salt;
+      this.hash = hash;
+    }
+
+    static Verifier create(SecureRandom random, String password) {
+      byte[] salt = new byte[SALT_LENGTH];
+      random.nextBytes(salt);
+      return new Verifier(salt, hash(password, salt));
+    }
+
+    boolean matches(String password) {
+      return MessageDigest.isEqual(hash, hash(password, salt));
+    }
+
+    private static byte[] hash(String password, byte[] salt) {
+      PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, ITERATIONS, HASH_LENGTH);
+      try {
+        return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+      } catch (GeneralSecurityException e) {
+        throw new SonarException("Unable to hash password", e);
+      } finally {
+        spec.clearPassword();
+      }
+    }
+  }
+
+}
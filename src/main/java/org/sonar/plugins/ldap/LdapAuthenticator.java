@@ -19,19 +19,32 @@
  */
 package org.sonar.plugins.ldap;
 
+import com.google.common.collect.Lists;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonar.api.security.LoginPasswordAuthenticator;
 
+import javax.annotation.Nullable;
+import javax.naming.AuthenticationException;
+import javax.naming.InvalidNameException;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingException;
-import javax.naming.directory.InitialDirContext;
 import javax.naming.directory.SearchResult;
+import javax.security.auth.Subject;
 import javax.security.auth.login.Configuration;
 import javax.security.auth.login.LoginContext;
 import javax.security.auth.login.LoginException;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Evgeny Mandrikov
@@ -39,12 +52,58 @@ import java.util.Map;
 public class LdapAuthenticator implements LoginPasswordAuthenticator {
 
   private static final Logger LOG = LoggerFactory.getLogger(LdapAuthenticator.class);
+
+  /**
+   * Passed to every login context instead of being installed as JVM-wide configuration,
+   * so that it does not affect other applications and is not replaced concurrently.
+   */
+  private static final Configuration KRB5_CONFIGURATION = new Krb5LoginConfiguration();
+
+  private static final String AD_USER_NOT_FOUND = "data 525";
+
   private final Map<String, LdapContextFactory> contextFactories;
   private final Map<String, LdapUserMapping> userMappings;
+  private final LdapAuthenticationCache authenticationCache;
+  private final LdapUserCache userCache;
+  private final ExecutorService executor;
+  private final long timeoutMs;
+  private final LdapKerberosCache kerberosCache;
 
   public LdapAuthenticator(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings) {
+    this(contextFactories, userMappings, null, LdapUserCache.disabled());
+  }
+
+  /**
+   * @param authenticationCache cache of successful authentications, or null to always authenticate against LDAP
+   * @param userCache cache of user DNs shared with users and groups providers
+   */
+  public LdapAuthenticator(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings,
+    @Nullable LdapAuthenticationCache authenticationCache, LdapUserCache userCache) {
+    this(contextFactories, userMappings, authenticationCache, userCache, null, 0);
+  }
+
+  /**
+   * @param executor executor to search for user on all servers at once, or null to search on servers one after another
+   * @param timeoutMs time budget of authentication on all servers, including search of user and verification of password, unlimited if not positive
+   */
+  public LdapAuthenticator(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings,
+    @Nullable LdapAuthenticationCache authenticationCache, LdapUserCache userCache, @Nullable ExecutorService executor, long timeoutMs) {
+    this(contextFactories, userMappings, authenticationCache, userCache, executor, timeoutMs, null);
+  }
+
+  /**
+   * @param kerberosCache cache of principals verified by Kerberos, or null to always verify password against KDC
+   */
+  public LdapAuthenticator(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings,
+    @Nullable LdapAuthenticationCache authenticationCache, LdapUserCache userCache, @Nullable ExecutorService executor, long timeoutMs,
+    @Nullable LdapKerberosCache kerberosCache) {
     this.contextFactories = contextFactories;
     this.userMappings = userMappings;
+    this.authenticationCache = authenticationCache;
+    this.userCache = userCache;
+    this.executor = executor;
+    this.timeoutMs = timeoutMs;
+    this.kerberosCache = kerberosCache;
   }
 
   public void init() {
@@ -56,69 +115,193 @@ public class LdapAuthenticator implements LoginPasswordAuthenticator {
    * @param login The login to use.
    * @param password The password to use.
    * @return false if specified user cannot be authenticated with specified password on any LDAP server
+   * @throws org.sonar.api.utils.SonarException if time budget of authentication exceeded
    */
   public boolean authenticate(String login, String password) {
-    for (String ldapKey : userMappings.keySet()) {
-      final String principal;
-      if (contextFactories.get(ldapKey).isSasl()) {
-        principal = login;
+    if (authenticationCache == null) {
+      return authenticateOnServers(login, password);
+    }
+    if (authenticationCache.isAuthenticated(login, password)) {
+      LOG.debug("User {} authenticated from cache", login);
+      return true;
+    }
+    boolean authenticated = authenticateOnServers(login, password);
+    if (authenticated) {
+      authenticationCache.authenticated(login, password);
+    } else {
+      authenticationCache.invalidate(login);
+    }
+    return authenticated;
+  }
+
+  private boolean authenticateOnServers(String login, String password) {
+    LdapDeadline deadline = LdapDeadline.start(timeoutMs);
+    List<String> serverKeys = Lists.newArrayList();
+    for (String ldapKey : userCache.orderServerKeys(login, userMappings.keySet())) {
+      if (contextFactories.get(ldapKey).isAvailable()) {
+        serverKeys.add(ldapKey);
       } else {
-        final SearchResult result;
-        try {
-          result = userMappings.get(ldapKey).createSearch(contextFactories.get(ldapKey), login).findUnique();
-        } catch (NamingException e) {
-          LOG.debug("User {} not found in server {}: {}", new Object[] {login, ldapKey, e.getMessage()});
-          continue;
-        }
-        if (result == null) {
-          LOG.debug("User {} not found in " + ldapKey, login);
-          continue;
-        }
-        principal = result.getNameInNamespace();
+        LOG.debug("Skipping server {}, which is not available", ldapKey);
       }
-      boolean passwordValid;
-      if (contextFactories.get(ldapKey).isGssapi()) {
-        passwordValid = checkPasswordUsingGssapi(principal, password, ldapKey);
-      }
-      passwordValid = checkPasswordUsingBind(principal, password, ldapKey);
-      if (passwordValid) {
+    }
+    boolean authenticated;
+    if (executor == null || serverKeys.size() < 2) {
+      authenticated = authenticateSequentially(serverKeys, login, password, deadline);
+    } else {
+      authenticated = authenticateInParallel(serverKeys, login, password, deadline);
+    }
+    if (!authenticated) {
+      LOG.debug("User {} not found", login);
+    }
+    return authenticated;
+  }
+
+  private boolean authenticateSequentially(List<String> serverKeys, String login, String password, LdapDeadline deadline) {
+    for (String ldapKey : serverKeys) {
+      if (authenticate(ldapKey, login, password, deadline)) {
         return true;
       }
     }
-    LOG.debug("User {} not found", login);
     return false;
   }
 
-  private boolean checkPasswordUsingBind(String principal, String password, String ldapKey) {
+  /**
+   * Searches for user on all servers at once, and checks password on servers in order of their responses,
+   * so that latency is defined by the fastest server where user exists. Pending searches are cancelled after success.
+   */
+  private boolean authenticateInParallel(List<String> serverKeys, final String login, String password, final LdapDeadline deadline) {
+    CompletionService<Principal> completionService = new ExecutorCompletionService<Principal>(executor);
+    List<Future<Principal>> futures = Lists.newArrayList();
+    try {
+      for (final String ldapKey : serverKeys) {
+        futures.add(completionService.submit(new Callable<Principal>() {
+          public Principal call() {
+            return findPrincipal(ldapKey, login, deadline);
+          }
+        }));
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        Principal principal = takePrincipal(completionService, login, deadline);
+        if (principal != null && checkPassword(principal, login, password, deadline)) {
+          return true;
+        }
+      }
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      for (Future<Principal> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  @Nullable
+  private static Principal takePrincipal(CompletionService<Principal> completionService, String login, LdapDeadline deadline)
+    throws InterruptedException {
+    try {
+      Future<Principal> future = completionService.poll(deadline.remainingMs(), TimeUnit.MILLISECONDS);
+      if (future == null) {
+        throw deadline.exceeded("authenticate user " + login);
+      }
+      return future.get();
+    } catch (ExecutionException e) {
+      LOG.warn("Unable to search for user", e.getCause());
+      return null;
+    }
+  }
+
+  private boolean authenticate(String ldapKey, String login, String password, LdapDeadline deadline) {
+    Principal principal = findPrincipal(ldapKey, login, deadline);
+    return principal != null && checkPassword(principal, login, password, deadline);
+  }
+
+  @Nullable
+  private Principal findPrincipal(String ldapKey, String login, LdapDeadline deadline) {
+    if (contextFactories.get(ldapKey).isSasl()) {
+      return new Principal(ldapKey, login, false);
+    }
+    deadline.check("authenticate user " + login);
+    boolean cachedPrincipal = userCache.isKnown(ldapKey, login);
+    final SearchResult result;
+    try {
+      result = userCache.find(ldapKey, userMappings.get(ldapKey), contextFactories.get(ldapKey), deadline, login);
+    } catch (NamingException e) {
+      // request might have been aborted, because budget is spent
+      deadline.check("authenticate user " + login);
+      LOG.debug("User {} not found in server {}: {}", new Object[] {login, ldapKey, e.getMessage()});
+      return null;
+    }
+    if (result == null) {
+      LOG.debug("User {} not found in " + ldapKey, login);
+      return null;
+    }
+    return new Principal(ldapKey, result.getNameInNamespace(), cachedPrincipal);
+  }
+
+  private boolean checkPassword(Principal principal, String login, String password, LdapDeadline deadline) {
+    deadline.check("authenticate user " + login);
+    String ldapKey = principal.ldapKey;
+    if (contextFactories.get(ldapKey).isGssapi()) {
+      return checkPasswordUsingGssapi(principal.name, password, ldapKey);
+    }
+    return checkPasswordUsingBind(principal, login, password, deadline);
+  }
+
+  private boolean checkPasswordUsingBind(Principal principal, String login, String password, LdapDeadline deadline) {
     if (StringUtils.isEmpty(password)) {
       LOG.debug("Password is blank.");
       return false;
     }
-    InitialDirContext context = null;
+    String ldapKey = principal.ldapKey;
     try {
-      context = contextFactories.get(ldapKey).createUserContext(principal, password);
+      contextFactories.get(ldapKey).verifyCredentials(principal.name, password, deadline);
       return true;
     } catch (NamingException e) {
-      LOG.debug("Password not valid for user {} in server {}: {}", new Object[] {principal, ldapKey, e.getMessage()});
+      deadline.check("authenticate user " + login);
+      if (principal.cached && isUnknownPrincipal(e)) {
+        // DN is outdated, so search again, but never after wrong password, which would count twice towards lockout
+        LOG.debug("User {} not found in server {} by cached DN {}", new Object[] {login, ldapKey, principal.name});
+        userCache.invalidate(login);
+        return authenticate(ldapKey, login, password, deadline);
+      }
+      LOG.debug("Password not valid for user {} in server {}: {}", new Object[] {principal.name, ldapKey, e.getMessage()});
       return false;
-    } finally {
-      ContextHelper.closeQuetly(context);
     }
   }
 
+  /**
+   * @return true if bind failed, because DN does not exist, including "invalid credentials" with diagnostic code 525 of Active Directory
+   */
+  private static boolean isUnknownPrincipal(NamingException e) {
+    return e instanceof NameNotFoundException
+      || e instanceof InvalidNameException
+      || (e instanceof AuthenticationException && StringUtils.contains(e.getMessage(), AD_USER_NOT_FOUND));
+  }
+
   private boolean checkPasswordUsingGssapi(String principal, String password, String ldapKey) {
-    // Use our custom configuration to avoid reliance on external config
-    Configuration.setConfiguration(new Krb5LoginConfiguration());
+    if (kerberosCache != null && kerberosCache.isAuthenticated(principal, password)) {
+      LOG.debug("Principal {} verified from cache", principal);
+      return true;
+    }
     LoginContext lc;
     try {
-      lc = new LoginContext(getClass().getName(), new CallbackHandlerImpl(principal, password));
+      lc = new LoginContext(getClass().getName(), new Subject(), new CallbackHandlerImpl(principal, password), KRB5_CONFIGURATION);
       lc.login();
     } catch (LoginException e) {
       // Bad username: Client not found in Kerberos database
       // Bad password: Integrity check on decrypted field failed
       LOG.debug("Password not valid for {} in server {}: {}", new Object[] {principal, ldapKey, e.getMessage()});
+      if (kerberosCache != null) {
+        kerberosCache.invalidate(principal);
+      }
       return false;
     }
+    if (kerberosCache != null) {
+      // before logout, which destroys tickets
+      kerberosCache.authenticated(principal, password, lc.getSubject());
+    }
     try {
       lc.logout();
     } catch (LoginException e) {
@@ -127,4 +310,25 @@ public class LdapAuthenticator implements LoginPasswordAuthenticator {
     return true;
   }
 
+  /**
+   * Stops threads used for parallel authentication.
+   */
+  public void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  private static final class Principal {
+    private final String ldapKey;
+    private final String name;
+    private final boolean cached;
+
+    Principal(String ldapKey, String name, boolean cached) {
+      this.ldapKey = ldapKey;
+      this.name = name;
+      this.cached = cached;
+    }
+  }
+
 }
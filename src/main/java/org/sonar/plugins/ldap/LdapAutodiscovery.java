@@ -147,6 +147,14 @@ public class LdapAutodiscovery implements ServerExtension {
       return serverUrl;
     }
 
+    public int getPriority() {
+      return priority;
+    }
+
+    public int getWeight() {
+      return weight;
+    }
+
     @Override
     public boolean equals(Object obj) {
       if (!(obj instanceof LdapSrvRecord)) {
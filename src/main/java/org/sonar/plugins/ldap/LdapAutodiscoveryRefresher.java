@@ -0,0 +1,88 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.plugins.ldap.LdapAutodiscovery.LdapSrvRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically resolves DNS SRV records of realm in background, and updates servers of context factory.
+ * JNDI DNS provider doesn't expose TTL of records, so interval of resolution is configured explicitly.
+ */
+class LdapAutodiscoveryRefresher {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LdapAutodiscoveryRefresher.class);
+
+  private final LdapAutodiscovery autodiscovery;
+  private final String realm;
+  private final LdapContextFactory contextFactory;
+  private final long intervalMs;
+  private ScheduledExecutorService executor;
+
+  LdapAutodiscoveryRefresher(LdapAutodiscovery autodiscovery, String realm, LdapContextFactory contextFactory, long intervalMs) {
+    this.autodiscovery = autodiscovery;
+    this.realm = realm;
+    this.contextFactory = contextFactory;
+    this.intervalMs = intervalMs;
+  }
+
+  public synchronized void start() {
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("ldap-autodiscovery").setDaemon(true).build());
+    executor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        refresh();
+      }
+    }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Resolves servers and updates context factory. Current servers are kept if resolution fails.
+   */
+  void refresh() {
+    try {
+      List<LdapSrvRecord> servers = new ArrayList<LdapSrvRecord>();
+      for (LdapSrvRecord server : autodiscovery.getLdapServers(realm)) {
+        if (StringUtils.isNotBlank(server.getServerUrl())) {
+          servers.add(server);
+        }
+      }
+      contextFactory.updateServers(servers);
+    } catch (RuntimeException e) {
+      // exception would cancel further executions
+      LOG.error("Unable to refresh LDAP servers of realm " + realm, e);
+    }
+  }
+
+  public synchronized void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+}
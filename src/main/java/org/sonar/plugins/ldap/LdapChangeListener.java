@@ -0,0 +1,46 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.Collection;
+
+/**
+ * Receives changes of entries detected by {@link LdapChangePoller}, so that cached data can be evicted or updated.
+ */
+public interface LdapChangeListener {
+
+  /**
+   * Entries of specified users were modified on specified server.
+   */
+  void usersChanged(String serverKey, Collection<String> logins);
+
+  /**
+   * Entries of specified groups were modified on specified server.
+   *
+   * @param dns DNs of groups
+   */
+  void groupsChanged(String serverKey, Collection<String> dns);
+
+  /**
+   * Changes on specified server since previous poll are unknown, for example after failover to another domain controller.
+   */
+  void allChanged(String serverKey);
+
+}
@@ -0,0 +1,317 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.InitialDirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
+
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically fetches entries of users and groups, which were modified since previous poll, and reports them to listeners,
+ * so that caches can keep entries for a long time without serving outdated data.
+ * <p>
+ * High-water mark is kept per server: on Active Directory it is {@code highestCommittedUSN} of domain controller,
+ * which is compared with {@code uSNChanged} of entries, and elsewhere it is the latest {@code modifyTimestamp} seen.
+ * Update sequence numbers are local to a domain controller, so a mark is kept for each domain controller, which answered,
+ * and all changes are reported only when a domain controller answers for the first time.
+ * Deletions are not detected, so deleted entries leave caches as usual.
+ */
+public class LdapChangePoller {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LdapChangePoller.class);
+
+  private static final String USN_ATTRIBUTE = "uSNChanged";
+  private static final String TIMESTAMP_ATTRIBUTE = "modifyTimestamp";
+  private static final String[] ROOT_DSE_ATTRIBUTES = {"highestCommittedUSN", "dsServiceName"};
+  // clock of server might be behind clock of this machine
+  private static final long CLOCK_SKEW_MS = 60000;
+
+  private final Map<String, LdapContextFactory> contextFactories;
+  private final Map<String, LdapUserMapping> userMappings;
+  private final Map<String, LdapGroupMapping> groupMappings;
+  private final List<LdapChangeListener> listeners;
+  private final long intervalMs;
+  // marks of each server by domain controller, or by empty string when timestamps are used, accessed only by thread of poller
+  private final Map<String, Map<String, Mark>> marks = Maps.newHashMap();
+  private volatile ScheduledExecutorService executor;
+  private volatile boolean closed = false;
+
+  LdapChangePoller(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings,
+    Map<String, LdapGroupMapping> groupMappings, List<LdapChangeListener> listeners, long intervalMs) {
+    this.contextFactories = contextFactories;
+    this.userMappings = userMappings;
+    this.groupMappings = groupMappings;
+    this.listeners = listeners;
+    this.intervalMs = intervalMs;
+  }
+
+  public void start() {
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("ldap-change-poller").setDaemon(true).build());
+    executor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        poll();
+      }
+    }, 0, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Polls changes of all servers. High-water mark of a server is kept when its poll fails, so that changes are fetched next time.
+   * Not thread-safe, executed only by single thread of poller, so that {@link #close()} doesn't wait for search in progress.
+   */
+  @VisibleForTesting
+  void poll() {
+    for (String serverKey : userMappings.keySet()) {
+      if (closed) {
+        return;
+      }
+      long start = System.nanoTime();
+      try {
+        poll(serverKey);
+        LOG.debug("Changes of {} polled in {}ms", serverKey, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      } catch (NamingException e) {
+        LOG.warn("Unable to poll changes of " + serverKey + ": " + e.getMessage());
+      } catch (RuntimeException e) {
+        // exception would cancel further executions
+        LOG.error("Unable to poll changes of " + serverKey, e);
+      }
+    }
+  }
+
+  private void poll(String serverKey) throws NamingException {
+    LdapContextFactory contextFactory = contextFactories.get(serverKey);
+    // single connection, so that all requests are answered by the same server
+    InitialDirContext context = contextFactory.borrowBindContext();
+    boolean broken = false;
+    try {
+      Map<String, Mark> serverMarks = marks.get(serverKey);
+      if (serverMarks == null) {
+        serverMarks = Maps.newHashMap();
+        marks.put(serverKey, serverMarks);
+      }
+      Attributes rootDse = context.getAttributes("", ROOT_DSE_ATTRIBUTES);
+      String usn = getValue(rootDse, ROOT_DSE_ATTRIBUTES[0]);
+      String server = usn == null ? "" : StringUtils.defaultString(getValue(rootDse, ROOT_DSE_ATTRIBUTES[1]));
+      Mark mark = serverMarks.get(server);
+      Mark next = getCurrentMark(usn, server, mark);
+      if (mark == null) {
+        if (!serverMarks.isEmpty()) {
+          LOG.info("Domain controller {} answered for {} for the first time, all cached entries are considered as modified", server, serverKey);
+          for (LdapChangeListener listener : listeners) {
+            listener.allChanged(serverKey);
+          }
+        }
+        serverMarks.put(server, next);
+        return;
+      }
+      String filter = mark.getFilter();
+      List<String> logins = searchUsers(contextFactory, context, serverKey, filter, next);
+      List<String> groups = searchGroups(contextFactory, context, serverKey, filter, next);
+      if (!logins.isEmpty() || !groups.isEmpty()) {
+        LOG.debug("Modified in {}: users {}, groups {}", new Object[] {serverKey, logins, groups});
+      }
+      for (LdapChangeListener listener : listeners) {
+        if (!logins.isEmpty()) {
+          listener.usersChanged(serverKey, logins);
+        }
+        if (!groups.isEmpty()) {
+          listener.groupsChanged(serverKey, groups);
+        }
+      }
+      serverMarks.put(server, next);
+    } catch (NamingException e) {
+      broken = LdapContextFactory.isCommunicationFailure(e);
+      throw e;
+    } finally {
+      release(contextFactory, context, broken);
+    }
+  }
+
+  /**
+   * Gives context back to the pool. Controls of paged search are removed, so that they don't affect subsequent requests.
+   */
+  private static void release(LdapContextFactory contextFactory, InitialDirContext context, boolean broken) {
+    boolean reset = broken;
+    if (!broken && contextFactory.getPageSize() > 0) {
+      try {
+        ((LdapContext) context).setRequestControls(null);
+      } catch (NamingException e) {
+        LOG.debug("Unable to reset request controls", e);
+        reset = true;
+      }
+    }
+    contextFactory.releaseBindContext(context, reset);
+  }
+
+  /**
+   * @return high-water mark, which will be used by next poll
+   */
+  private static Mark getCurrentMark(@Nullable String usn, String server, @Nullable Mark previous) {
+    if (usn != null) {
+      // read before search, so changes made during search are fetched again by next poll
+      return new Mark(server, Long.parseLong(usn), null);
+    }
+    if (previous != null) {
+      // copy, so that previous one is kept if poll fails
+      return new Mark(previous.server, previous.usn, previous.timestamp);
+    }
+    SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return new Mark(null, 0, format.format(new Date(System.currentTimeMillis() - CLOCK_SKEW_MS)));
+  }
+
+  private List<String> searchUsers(LdapContextFactory contextFactory, InitialDirContext context, String serverKey, String filter, Mark next)
+    throws NamingException {
+    LdapUserMapping userMapping = userMappings.get(serverKey);
+    String loginAttribute = userMapping.getLoginAttribute();
+    if (loginAttribute == null) {
+      return Lists.newArrayList();
+    }
+    List<String> result = Lists.newArrayList();
+    for (SearchResult entry : search(contextFactory, context, userMapping.getBaseDn(), "(&" + userMapping.getRequestOfAll() + filter + ")", next, loginAttribute)) {
+      String login = getValue(entry.getAttributes(), loginAttribute);
+      if (login != null) {
+        result.add(login);
+      }
+    }
+    return result;
+  }
+
+  private List<String> searchGroups(LdapContextFactory contextFactory, InitialDirContext context, String serverKey, String filter, Mark next)
+    throws NamingException {
+    LdapGroupMapping groupMapping = groupMappings.get(serverKey);
+    if (groupMapping == null) {
+      return Lists.newArrayList();
+    }
+    List<String> result = Lists.newArrayList();
+    for (SearchResult entry : search(contextFactory, context, groupMapping.getBaseDn(), "(&" + groupMapping.getRequestOfAll() + filter + ")", next)) {
+      result.add(entry.getNameInNamespace());
+    }
+    return result;
+  }
+
+  /**
+   * Searches for modified entries page by page, the same way as {@link LdapSearch}, so that number of changes is not limited
+   * by size limit of server, and advances timestamp of next high-water mark.
+   * Entries are not ordered by update sequence number, so mark is stored only after all pages are read.
+   */
+  private static List<SearchResult> search(LdapContextFactory contextFactory, InitialDirContext context, String baseDn, String filter, Mark next,
+    String... attributes) throws NamingException {
+    SearchControls controls = new SearchControls();
+    controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+    String[] returned = new String[attributes.length + 1];
+    System.arraycopy(attributes, 0, returned, 0, attributes.length);
+    returned[attributes.length] = TIMESTAMP_ATTRIBUTE;
+    controls.setReturningAttributes(returned);
+    // server should not keep working on search after client gave up waiting
+    controls.setTimeLimit((int) Math.min(contextFactory.getReadTimeout(), Integer.MAX_VALUE));
+    int pageSize = contextFactory.getPageSize();
+    List<SearchResult> result = Lists.newArrayList();
+    byte[] cookie = null;
+    do {
+      if (pageSize > 0) {
+        LdapSearch.setPageControl(context, pageSize, cookie);
+      }
+      NamingEnumeration<SearchResult> enumeration = context.search(baseDn, filter, controls);
+      try {
+        while (enumeration.hasMore()) {
+          SearchResult entry = enumeration.next();
+          result.add(entry);
+          next.advance(getValue(entry.getAttributes(), TIMESTAMP_ATTRIBUTE));
+        }
+      } finally {
+        enumeration.close();
+      }
+      cookie = pageSize > 0 ? LdapSearch.getPageCookie(context) : null;
+    } while (cookie != null);
+    return result;
+  }
+
+  @Nullable
+  private static String getValue(Attributes attributes, String id) throws NamingException {
+    Attribute attribute = attributes.get(id);
+    return attribute == null ? null : (String) attribute.get();
+  }
+
+  /**
+   * Stops polling without waiting for poll in progress, which doesn't proceed to next server.
+   */
+  public void close() {
+    closed = true;
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Position in history of changes of a server.
+   */
+  private static final class Mark {
+    // identifies domain controller, null when timestamps are used
+    private final String server;
+    private final long usn;
+    private String timestamp;
+
+    Mark(@Nullable String server, long usn, @Nullable String timestamp) {
+      this.server = server;
+      this.usn = usn;
+      this.timestamp = timestamp;
+    }
+
+    String getFilter() {
+      if (server != null) {
+        return "(" + USN_ATTRIBUTE + ">=" + (usn + 1) + ")";
+      }
+      // entries modified in the same second are fetched again, which is harmless
+      return "(" + TIMESTAMP_ATTRIBUTE + ">=" + timestamp + ")";
+    }
+
+    void advance(@Nullable String modifyTimestamp) {
+      // generalized time of a server has fixed format, so lexicographical order is chronological
+      if (server == null && modifyTimestamp != null && modifyTimestamp.compareTo(timestamp) > 0) {
+        timestamp = modifyTimestamp;
+      }
+    }
+  }
+
+}
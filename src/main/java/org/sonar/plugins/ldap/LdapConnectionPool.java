@@ -0,0 +1,269 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.naming.NamingException;
+import javax.naming.directory.InitialDirContext;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of contexts for a single LDAP server.
+ * Idle contexts are reused most-recently-used first, so that rarely used connections age and get evicted.
+ * Min size of contexts is opened by {@link #fill()} and kept on eviction, both called periodically by owner of pool.
+ *
+ * @author Evgeny Mandrikov
+ */
+abstract class LdapConnectionPool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LdapConnectionPool.class);
+
+  private static final String[] VALIDATION_ATTRIBUTES = new String[] {"objectClass"};
+
+  private final String name;
+  private final int minSize;
+  private final int maxSize;
+  private final long borrowTimeoutMs;
+  private final long idleTimeoutNanos;
+  private final boolean validateOnBorrow;
+  private final Ticker ticker;
+
+  private final Semaphore permits;
+  private final LinkedList<IdleContext> idle = new LinkedList<IdleContext>();
+  private volatile boolean closed = false;
+
+  LdapConnectionPool(String name, int minSize, int maxSize, long borrowTimeoutMs, long idleTimeoutMs, boolean validateOnBorrow) {
+    this(name, minSize, maxSize, borrowTimeoutMs, idleTimeoutMs, validateOnBorrow, Ticker.systemTicker());
+  }
+
+  LdapConnectionPool(String name, int minSize, int maxSize, long borrowTimeoutMs, long idleTimeoutMs, boolean validateOnBorrow, Ticker ticker) {
+    if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+      throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+    }
+    this.name = name;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.borrowTimeoutMs = borrowTimeoutMs;
+    this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+    this.validateOnBorrow = validateOnBorrow;
+    this.ticker = ticker;
+    this.permits = new Semaphore(maxSize, true);
+  }
+
+  /**
+   * Opens a new connection, which will be owned by this pool.
+   *
+   * @param deadline time budget of operation, which requires connection
+   */
+  protected abstract InitialDirContext createContext(LdapDeadline deadline) throws NamingException;
+
+  /**
+   * Returns an idle context, or a new one if none is idle.
+   * Every borrowed context must be given back with {@link #release(InitialDirContext, boolean)}.
+   *
+   * @throws NamingException if pool exhausted for longer than borrow timeout, or unable to open connection
+   */
+  public InitialDirContext borrow() throws NamingException {
+    return borrow(LdapDeadline.unlimited());
+  }
+
+  /**
+   * Same as {@link #borrow()}, but waits for connection no longer than remaining time of specified deadline.
+   */
+  public InitialDirContext borrow(LdapDeadline deadline) throws NamingException {
+    if (closed) {
+      throw new NamingException("Connection pool " + name + " is closed");
+    }
+    acquirePermit(Math.min(borrowTimeoutMs, deadline.remainingMs()));
+    boolean threw = true;
+    try {
+      InitialDirContext context = pollIdle();
+      if (context == null) {
+        context = createContext(deadline);
+      }
+      threw = false;
+      return context;
+    } finally {
+      if (threw) {
+        permits.release();
+      }
+    }
+  }
+
+  /**
+   * Gives back a context obtained from {@link #borrow()}.
+   *
+   * @param broken if true, context will be closed instead of being reused
+   */
+  public void release(@Nullable InitialDirContext context, boolean broken) {
+    if (context == null) {
+      return;
+    }
+    try {
+      if (broken || closed) {
+        ContextHelper.closeQuetly(context);
+      } else {
+        synchronized (idle) {
+          idle.addFirst(new IdleContext(context, ticker.read()));
+        }
+        evictIdle();
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Closes contexts, which were idle for longer than idle timeout, keeping at least min size of them.
+   */
+  public void evictIdle() {
+    List<InitialDirContext> evicted = Lists.newArrayList();
+    long now = ticker.read();
+    synchronized (idle) {
+      while (idle.size() > minSize && now - idle.getLast().since > idleTimeoutNanos) {
+        evicted.add(idle.removeLast().context);
+      }
+    }
+    for (InitialDirContext context : evicted) {
+      ContextHelper.closeQuetly(context);
+    }
+    if (!evicted.isEmpty()) {
+      LOG.debug("Evicted {} idle connection(s) from {}", evicted.size(), name);
+    }
+  }
+
+  /**
+   * Opens contexts until min size of them are open, so that first requests after start or after idle period don't wait for connection.
+   *
+   * @throws NamingException if unable to open connection
+   */
+  public void fill() throws NamingException {
+    while (!closed && getIdleCount() + getActiveCount() < minSize && permits.tryAcquire()) {
+      InitialDirContext context = null;
+      try {
+        context = createContext(LdapDeadline.unlimited());
+      } finally {
+        if (context == null) {
+          permits.release();
+        }
+      }
+      release(context, false);
+    }
+  }
+
+  /**
+   * Closes all idle contexts. Contexts borrowed at this moment will be closed on release.
+   */
+  public void close() {
+    closed = true;
+    List<InitialDirContext> contexts = Lists.newArrayList();
+    synchronized (idle) {
+      for (IdleContext idleContext : idle) {
+        contexts.add(idleContext.context);
+      }
+      idle.clear();
+    }
+    for (InitialDirContext context : contexts) {
+      ContextHelper.closeQuetly(context);
+    }
+  }
+
+  public int getIdleCount() {
+    synchronized (idle) {
+      return idle.size();
+    }
+  }
+
+  public int getActiveCount() {
+    return maxSize - permits.availablePermits();
+  }
+
+  private void acquirePermit(long timeoutMs) throws NamingException {
+    try {
+      if (!permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+        throw new NamingException("Timeout waiting for connection from pool " + name + " (maxSize=" + maxSize + ")");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new NamingException("Interrupted while waiting for connection from pool " + name);
+    }
+  }
+
+  @Nullable
+  private InitialDirContext pollIdle() {
+    while (true) {
+      InitialDirContext context;
+      synchronized (idle) {
+        if (idle.isEmpty()) {
+          return null;
+        }
+        context = idle.removeFirst().context;
+      }
+      if (!validateOnBorrow || isValid(context)) {
+        return context;
+      }
+      ContextHelper.closeQuetly(context);
+    }
+  }
+
+  private boolean isValid(InitialDirContext context) {
+    try {
+      context.getAttributes("", VALIDATION_ATTRIBUTES);
+      return true;
+    } catch (NamingException e) {
+      LOG.debug("Discarding stale connection from {}: {}", name, e.getMessage());
+      return false;
+    }
+  }
+
+  @Override
+  public String toString() {
+    // pools are anonymous subclasses
+    return Objects.toStringHelper(LdapConnectionPool.class.getSimpleName())
+      .add("name", name)
+      .add("minSize", minSize)
+      .add("maxSize", maxSize)
+      .add("borrowTimeout", borrowTimeoutMs)
+      .add("idleTimeout", TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos))
+      .add("validateOnBorrow", validateOnBorrow)
+      .toString();
+  }
+
+  private static final class IdleContext {
+    private final InitialDirContext context;
+    private final long since;
+
+    IdleContext(InitialDirContext context, long since) {
+      this.context = context;
+      this.since = since;
+    }
+  }
+
+}
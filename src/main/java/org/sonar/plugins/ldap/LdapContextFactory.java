@@ -20,21 +20,40 @@
 package org.sonar.plugins.ldap;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
 import com.google.common.base.Objects;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonar.api.config.Settings;
 import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.ldap.LdapAutodiscovery.LdapSrvRecord;
 
+import javax.annotation.Nullable;
+import javax.naming.CommunicationException;
 import javax.naming.Context;
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
 import javax.naming.directory.InitialDirContext;
 import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 /**
+ * Creates contexts for a single directory, which might be served by several servers,
+ * for example discovered from DNS SRV records. Each server has its own pool of connections.
+ * Servers are tried in order defined by {@link LdapServerSelector} configured by property {@code balancing},
+ * and next one is tried if server doesn't respond.
+ *
  * @author Evgeny Mandrikov
  */
 public class LdapContextFactory {
@@ -54,35 +73,245 @@ public class LdapContextFactory {
   @VisibleForTesting
   static final String CRAM_MD5_METHOD = "CRAM-MD5";
 
+  private static final int DEFAULT_POOL_MIN_SIZE = 0;
+  private static final int DEFAULT_POOL_MAX_SIZE = 10;
+  private static final long DEFAULT_POOL_BORROW_TIMEOUT = 5000L;
+  private static final long DEFAULT_POOL_IDLE_TIMEOUT = 300000L;
+  private static final long MIN_POOL_MAINTENANCE_INTERVAL = 1000L;
+  private static final int DEFAULT_HEALTH_FAILURE_THRESHOLD = 3;
+  private static final long DEFAULT_CONNECT_TIMEOUT = 5000L;
+  private static final long DEFAULT_READ_TIMEOUT = 15000L;
+
+  private static final String CONNECT_TIMEOUT_PROPERTY = "com.sun.jndi.ldap.connect.timeout";
+  private static final String READ_TIMEOUT_PROPERTY = "com.sun.jndi.ldap.read.timeout";
+
   /**
-   * The Sun LDAP property used to enable connection pooling. This is used in the default implementation to enable
-   * LDAP connection pooling.
+   * Response time of server, which is not used, tends towards response time of other servers within few minutes.
    */
-  private static final String SUN_CONNECTION_POOLING_PROPERTY = "com.sun.jndi.ldap.connect.pool";
+  private static final long LATENCY_DECAY = 60000L;
+
+  private static final String[] PROBE_ATTRIBUTES = new String[] {"objectClass"};
 
   private static final String SASL_REALM_PROPERTY = "java.naming.security.sasl.realm";
 
-  private final String providerUrl;
+  /**
+   * Attributes of Active Directory, whose values are returned as byte arrays instead of strings.
+   */
+  private static final String BINARY_ATTRIBUTES_PROPERTY = "java.naming.ldap.attributes.binary";
+  private static final String BINARY_ATTRIBUTES = LdapGroupsProvider.TOKEN_GROUPS_ATTRIBUTE + " " + LdapSidCache.SID_ATTRIBUTE;
+
   private final String authentication;
   private final String factory;
   private final String username;
   private final String password;
   private final String realm;
+  private final long connectTimeout;
+  private final long readTimeout;
+  private final int pageSize;
+  private final int poolMinSize;
+  private final int poolMaxSize;
+  private final long poolBorrowTimeout;
+  private final long poolIdleTimeout;
+  private final boolean validateOnBorrow;
+  private final boolean verifyPasswords;
+  private final int failureThreshold;
+  private final LdapHealthProber prober;
+  private final LdapServerSelector selector;
+  private volatile List<Endpoint> endpoints;
+  private final Map<InitialDirContext, Endpoint> borrowed = Maps.newIdentityHashMap();
 
   public LdapContextFactory(Settings settings, String settingsPrefix, String ldapUrl) {
+    this(settings, settingsPrefix, ldapUrl, null);
+  }
+
+  /**
+   * @param prober prober of servers, which are down, or null to never consider server as down
+   */
+  public LdapContextFactory(Settings settings, String settingsPrefix, String ldapUrl, @Nullable LdapHealthProber prober) {
+    this(settings, settingsPrefix, Collections.singletonList(new LdapSrvRecord(ldapUrl, 0, 0)), prober);
+  }
+
+  /**
+   * @param servers servers of a single directory
+   * @param prober prober of servers, which are down, or null to never consider server as down
+   */
+  public LdapContextFactory(Settings settings, String settingsPrefix, List<LdapSrvRecord> servers, @Nullable LdapHealthProber prober) {
+    if (servers.isEmpty()) {
+      throw new IllegalArgumentException("At least one server required");
+    }
     this.authentication = StringUtils.defaultString(settings.getString(settingsPrefix + ".authentication"), DEFAULT_AUTHENTICATION);
     this.factory = StringUtils.defaultString(settings.getString(settingsPrefix + ".contextFactoryClass"), DEFAULT_FACTORY);
     this.realm = settings.getString(settingsPrefix + ".realm");
-    this.providerUrl = ldapUrl;
     this.username = settings.getString(settingsPrefix + ".bindDn");
     this.password = settings.getString(settingsPrefix + ".bindPassword");
+    this.connectTimeout = NumberUtils.toLong(settings.getString(settingsPrefix + ".connectTimeout"), DEFAULT_CONNECT_TIMEOUT);
+    this.readTimeout = NumberUtils.toLong(settings.getString(settingsPrefix + ".readTimeout"), DEFAULT_READ_TIMEOUT);
+    this.pageSize = NumberUtils.toInt(settings.getString(settingsPrefix + ".pageSize"), 0);
+    this.poolMinSize = NumberUtils.toInt(settings.getString(settingsPrefix + ".pool.minSize"), DEFAULT_POOL_MIN_SIZE);
+    this.poolMaxSize = NumberUtils.toInt(settings.getString(settingsPrefix + ".pool.maxSize"), DEFAULT_POOL_MAX_SIZE);
+    this.poolBorrowTimeout = NumberUtils.toLong(settings.getString(settingsPrefix + ".pool.borrowTimeout"), DEFAULT_POOL_BORROW_TIMEOUT);
+    this.poolIdleTimeout = NumberUtils.toLong(settings.getString(settingsPrefix + ".pool.idleTimeout"), DEFAULT_POOL_IDLE_TIMEOUT);
+    this.validateOnBorrow = Boolean.valueOf(StringUtils.defaultString(settings.getString(settingsPrefix + ".pool.validateOnBorrow"), "true"));
+    this.verifyPasswords = settings.getBoolean(settingsPrefix + ".pool.verifyPasswords");
+    this.failureThreshold = prober == null ? 0
+      : NumberUtils.toInt(settings.getString(settingsPrefix + ".health.failureThreshold"), DEFAULT_HEALTH_FAILURE_THRESHOLD);
+    this.prober = prober;
+    String balancing = StringUtils.defaultString(settings.getString(settingsPrefix + ".balancing"), LdapServerSelector.LATENCY);
+    try {
+      this.selector = LdapServerSelector.create(balancing);
+    } catch (IllegalArgumentException e) {
+      throw new SonarException("Invalid value of property '" + settingsPrefix + ".balancing': " + e.getMessage());
+    }
+    List<Endpoint> list = Lists.newArrayList();
+    for (LdapSrvRecord server : servers) {
+      list.add(new Endpoint(server));
+    }
+    this.endpoints = ImmutableList.copyOf(list);
+    if (prober != null) {
+      // connection is closed at most half of idle timeout after it expired
+      prober.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          maintainPools();
+        }
+      }, Math.max(poolIdleTimeout / 2, MIN_POOL_MAINTENANCE_INTERVAL));
+    }
+  }
+
+  /**
+   * Closes connections, which were idle for too long, even if pools are not used anymore,
+   * and opens connections to available servers up to min size of pools.
+   */
+  @VisibleForTesting
+  void maintainPools() {
+    for (Endpoint endpoint : endpoints) {
+      endpoint.maintainPools();
+    }
+  }
+
+  /**
+   * Replaces set of servers, for example after new resolution of DNS SRV records.
+   * Servers, which are kept, retain their connections and statistics. Connections to removed servers are closed
+   * when they are given back, so that requests in progress are not affected.
+   *
+   * @param servers new servers, ignored if empty
+   */
+  public synchronized void updateServers(List<LdapSrvRecord> servers) {
+    if (servers.isEmpty()) {
+      LOG.warn("Keeping servers {}, because new list is empty", getProviderUrl());
+      return;
+    }
+    Map<String, Endpoint> previous = Maps.newHashMap();
+    for (Endpoint endpoint : endpoints) {
+      previous.put(endpoint.getUrl(), endpoint);
+    }
+    List<Endpoint> list = Lists.newArrayList();
+    for (LdapSrvRecord server : servers) {
+      Endpoint endpoint = previous.remove(server.getServerUrl());
+      if (endpoint == null) {
+        LOG.info("Adding server {}", server.getServerUrl());
+        endpoint = new Endpoint(server);
+      } else {
+        endpoint.record = server;
+      }
+      list.add(endpoint);
+    }
+    endpoints = ImmutableList.copyOf(list);
+    for (Endpoint removed : previous.values()) {
+      LOG.info("Removing server {}", removed.getUrl());
+      removed.close();
+    }
+  }
+
+  private LdapConnectionPool createPool(String name, final Endpoint endpoint, boolean validate) {
+    return new LdapConnectionPool(name, poolMinSize, poolMaxSize, poolBorrowTimeout, poolIdleTimeout, validate) {
+      @Override
+      protected InitialDirContext createContext(LdapDeadline deadline) throws NamingException {
+        return createInitialDirContext(endpoint, username, password, deadline, true);
+      }
+    };
   }
 
   /**
-   * Returns {@code InitialDirContext} for Bind user.
+   * Returns new {@code InitialDirContext} for Bind user.
+   * Prefer {@link #borrowBindContext()}, which reuses connections.
    */
   public InitialDirContext createBindContext() throws NamingException {
-    return createInitialDirContext(username, password, true);
+    return createUserContext(username, password);
+  }
+
+  /**
+   * Returns pooled {@code InitialDirContext} for Bind user, which must be given back by {@link #releaseBindContext(InitialDirContext, boolean)}.
+   *
+   * @throws NamingException if unable to open connection, or no connection available in time
+   */
+  public InitialDirContext borrowBindContext() throws NamingException {
+    return borrowBindContext(LdapDeadline.unlimited());
+  }
+
+  /**
+   * Same as {@link #borrowBindContext()}, but servers are tried only until specified deadline.
+   *
+   * @throws org.sonar.api.utils.SonarException if time budget exceeded
+   */
+  InitialDirContext borrowBindContext(final LdapDeadline deadline) throws NamingException {
+    return withFailover(new Operation<InitialDirContext>() {
+      @Override
+      InitialDirContext execute(Endpoint endpoint) throws NamingException {
+        InitialDirContext context = endpoint.bindPool.borrow(deadline);
+        synchronized (borrowed) {
+          borrowed.put(context, endpoint);
+        }
+        return context;
+      }
+    }, deadline);
+  }
+
+  /**
+   * Gives back context obtained from {@link #borrowBindContext()}.
+   *
+   * @param broken if true, then connection will be closed instead of being reused
+   */
+  public void releaseBindContext(@Nullable InitialDirContext context, boolean broken) {
+    releaseBindContext(context, broken, LdapDeadline.unlimited());
+  }
+
+  /**
+   * Same as {@link #releaseBindContext(InitialDirContext, boolean)}, but connection broken after deadline of operation
+   * is not counted as failure of server, because it might have been closed by {@link LdapDeadline#watch(InitialDirContext)}.
+   */
+  void releaseBindContext(@Nullable InitialDirContext context, boolean broken, LdapDeadline deadline) {
+    if (context == null) {
+      return;
+    }
+    Endpoint endpoint;
+    synchronized (borrowed) {
+      endpoint = borrowed.remove(context);
+    }
+    if (endpoint == null) {
+      LOG.warn("Closing connection, which was not obtained from pool");
+      ContextHelper.closeQuetly(context);
+      return;
+    }
+    if (!broken) {
+      endpoint.health.success();
+    } else if (!deadline.isExceeded()) {
+      endpoint.health.failure();
+    }
+    endpoint.bindPool.release(context, broken);
+  }
+
+  /**
+   * Records time to the first response of server for request made on context obtained from {@link #borrowBindContext()},
+   * which excludes time spent by caller on reading of results.
+   */
+  void recordResponseTime(InitialDirContext context, long elapsedNanos) {
+    Endpoint endpoint;
+    synchronized (borrowed) {
+      endpoint = borrowed.get(context);
+    }
+    if (endpoint != null) {
+      endpoint.latency.record(elapsedNanos);
+    }
   }
 
   /**
@@ -90,26 +319,128 @@ public class LdapContextFactory {
    * Note that pooling intentionally disabled by this method.
    */
   public InitialDirContext createUserContext(String principal, String credentials) throws NamingException {
-    return createInitialDirContext(principal, credentials, false);
+    return createUserContext(principal, credentials, LdapDeadline.unlimited());
+  }
+
+  private InitialDirContext createUserContext(final String principal, final String credentials, final LdapDeadline deadline) throws NamingException {
+    return withFailover(new Operation<InitialDirContext>() {
+      @Override
+      InitialDirContext execute(Endpoint endpoint) throws NamingException {
+        return createInitialDirContext(endpoint, principal, credentials, deadline, false);
+      }
+    }, deadline);
+  }
+
+  /**
+   * Verifies credentials of specified user by binding with them.
+   * If property {@code pool.verifyPasswords} is enabled, then bind is performed on a pooled connection dedicated to
+   * password verification, which avoids TCP and TLS handshakes, otherwise on a new connection.
+   *
+   * @throws NamingException if credentials are not valid, or unable to open connection
+   */
+  public void verifyCredentials(String principal, String credentials) throws NamingException {
+    verifyCredentials(principal, credentials, LdapDeadline.unlimited());
+  }
+
+  /**
+   * Same as {@link #verifyCredentials(String, String)}, but timeouts of requests are reduced to remaining time of specified deadline.
+   *
+   * @throws org.sonar.api.utils.SonarException if time budget exceeded
+   */
+  void verifyCredentials(final String principal, final String credentials, final LdapDeadline deadline) throws NamingException {
+    if (!verifyPasswords) {
+      ContextHelper.closeQuetly(createUserContext(principal, credentials, deadline));
+      return;
+    }
+    withFailover(new Operation<Void>() {
+      @Override
+      Void execute(Endpoint endpoint) throws NamingException {
+        endpoint.verifyCredentials(principal, credentials, deadline);
+        return null;
+      }
+    }, deadline);
+  }
+
+  /**
+   * Performs operation on servers in order defined by selector, until one of them responds or deadline is reached.
+   */
+  private <T> T withFailover(Operation<T> operation, LdapDeadline deadline) throws NamingException {
+    NamingException failure = null;
+    for (Endpoint endpoint : selector.order(endpoints)) {
+      deadline.check("connect to " + endpoint.getUrl());
+      try {
+        return operation.execute(endpoint);
+      } catch (NamingException e) {
+        if (!isCommunicationFailure(e)) {
+          throw e;
+        }
+        LOG.debug("Server {} did not respond: {}", endpoint.getUrl(), e.getMessage());
+        failure = e;
+      }
+    }
+    if (failure == null) {
+      throw new ServiceUnavailableException("No server of " + getProviderUrl() + " available");
+    }
+    throw failure;
+  }
+
+  /**
+   * Re-authenticates existing connection, see "Changing credentials" in JNDI LDAP provider documentation.
+   * Connections from verification pool are never used for searches, so there is no need to bind back as Bind user.
+   */
+  private static void rebind(InitialDirContext context, String principal, String credentials) throws NamingException {
+    context.addToEnvironment(Context.SECURITY_PRINCIPAL, principal);
+    context.addToEnvironment(Context.SECURITY_CREDENTIALS, credentials);
+    ((LdapContext) context).reconnect(null);
+  }
+
+  /**
+   * Connect timeout is reduced to remaining time of deadline, and it also limits bind on new connection.
+   * Read timeout of pooled connection applies to all its future requests, so it is not reduced,
+   * and requests are aborted by {@link LdapDeadline#watch(InitialDirContext)} instead.
+   */
+  private InitialDirContext createInitialDirContext(Endpoint endpoint, String principal, String credentials, LdapDeadline deadline, boolean pooled)
+    throws NamingException {
+    long readTimeoutMs = pooled ? readTimeout : deadline.cap(readTimeout);
+    try {
+      InitialDirContext context = new InitialLdapContext(getEnvironment(endpoint.getUrl(), principal, credentials, deadline.cap(connectTimeout),
+        readTimeoutMs), null);
+      endpoint.health.success();
+      return context;
+    } catch (NamingException e) {
+      if (isCommunicationFailure(e)) {
+        // timeouts reduced to remaining time of operation don't mean that server is down
+        if (!deadline.isExceeded()) {
+          endpoint.health.failure();
+        }
+      } else {
+        // server responded, for example credentials are not valid
+        endpoint.health.success();
+      }
+      throw e;
+    }
   }
 
-  private InitialDirContext createInitialDirContext(String principal, String credentials, boolean pooling) throws NamingException {
-    return new InitialLdapContext(getEnvironment(principal, credentials, pooling), null);
+  static boolean isCommunicationFailure(NamingException e) {
+    return e instanceof CommunicationException || e instanceof ServiceUnavailableException;
   }
 
-  private Properties getEnvironment(String principal, String credentials, boolean pooling) {
+  private Properties getEnvironment(String providerUrl, String principal, String credentials, long connectTimeoutMs, long readTimeoutMs) {
     Properties env = new Properties();
     env.put(Context.SECURITY_AUTHENTICATION, authentication);
     if (realm != null) {
       env.put(SASL_REALM_PROPERTY, realm);
     }
-    if (pooling) {
-      // Enable connection pooling
-      env.put(SUN_CONNECTION_POOLING_PROPERTY, "true");
-    }
     env.put(Context.INITIAL_CONTEXT_FACTORY, factory);
     env.put(Context.PROVIDER_URL, providerUrl);
     env.put(Context.REFERRAL, DEFAULT_REFERRAL);
+    env.put(BINARY_ATTRIBUTES_PROPERTY, BINARY_ATTRIBUTES);
+    if (connectTimeoutMs > 0) {
+      env.put(CONNECT_TIMEOUT_PROPERTY, Long.toString(connectTimeoutMs));
+    }
+    if (readTimeoutMs > 0) {
+      env.put(READ_TIMEOUT_PROPERTY, Long.toString(readTimeoutMs));
+    }
     if (principal != null) {
       env.put(Context.SECURITY_PRINCIPAL, principal);
     }
@@ -121,6 +452,20 @@ public class LdapContextFactory {
     return env;
   }
 
+  /**
+   * @return time in milliseconds to wait for response of server, 0 if unlimited
+   */
+  public long getReadTimeout() {
+    return Math.max(readTimeout, 0);
+  }
+
+  /**
+   * @return number of results per page of searches (RFC 2696), 0 if searches are not paged
+   */
+  public int getPageSize() {
+    return Math.max(pageSize, 0);
+  }
+
   public boolean isSasl() {
     return DIGEST_MD5_METHOD.equals(authentication) ||
       CRAM_MD5_METHOD.equals(authentication) ||
@@ -131,6 +476,18 @@ public class LdapContextFactory {
     return GSSAPI_METHOD.equals(authentication);
   }
 
+  /**
+   * @return false if all servers are known to be down, so that directory should be skipped when other directories are configured
+   */
+  public boolean isAvailable() {
+    for (Endpoint endpoint : getEndpoints()) {
+      if (endpoint.isAvailable()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * Tests connection.
    *
@@ -141,8 +498,8 @@ public class LdapContextFactory {
       throw new SonarException("When using SASL - property ldap.bindDn is required");
     } else {
       try {
-        createBindContext();
-        LOG.info("Test LDAP connection on {}: OK", providerUrl);
+        releaseBindContext(borrowBindContext(), false);
+        LOG.info("Test LDAP connection on {}: OK", getProviderUrl());
       } catch (NamingException e) {
         LOG.info("Test LDAP connection: FAIL");
         throw new SonarException("Unable to open LDAP connection", e);
@@ -150,19 +507,199 @@ public class LdapContextFactory {
     }
   }
 
+  /**
+   * Closes pooled connections.
+   */
+  public synchronized void close() {
+    for (Endpoint endpoint : endpoints) {
+      endpoint.close();
+    }
+  }
+
+  /**
+   * @return URLs of servers separated by space
+   */
   public String getProviderUrl() {
-    return providerUrl;
+    List<String> urls = Lists.newArrayList();
+    for (Endpoint endpoint : getEndpoints()) {
+      urls.add(endpoint.getUrl());
+    }
+    return Joiner.on(' ').join(urls);
+  }
+
+  /**
+   * @return current servers
+   */
+  List<Endpoint> getEndpoints() {
+    return endpoints;
   }
 
   @Override
   public String toString() {
     return Objects.toStringHelper(this)
-      .add("url", providerUrl)
+      .add("url", getProviderUrl())
       .add("authentication", authentication)
       .add("factory", factory)
       .add("bindDn", username)
       .add("realm", realm)
+      .add("connectTimeout", connectTimeout)
+      .add("readTimeout", readTimeout)
+      .add("pageSize", pageSize)
+      .add("servers", getEndpoints())
       .toString();
   }
 
+  /**
+   * Single server of directory.
+   */
+  final class Endpoint {
+    private volatile LdapSrvRecord record;
+    private final LdapConnectionPool bindPool;
+    private final LdapConnectionPool verificationPool;
+    private final LdapServerHealth health;
+    private final LdapLatency latency = new LdapLatency(LATENCY_DECAY, Ticker.systemTicker());
+    private volatile boolean closed = false;
+
+    Endpoint(LdapSrvRecord record) {
+      this.record = record;
+      String url = record.getServerUrl();
+      this.bindPool = createPool(url, this, validateOnBorrow);
+      // Bind on verification connection validates it anyway
+      this.verificationPool = verifyPasswords ? createPool(url + " (password verification)", this, false) : null;
+      this.health = new LdapServerHealth(url, failureThreshold, prober == null ? null : new Runnable() {
+        public void run() {
+          prober.schedule(Endpoint.this);
+        }
+      });
+    }
+
+    public String getUrl() {
+      return record.getServerUrl();
+    }
+
+    public int getPriority() {
+      return record.getPriority();
+    }
+
+    public int getWeight() {
+      return record.getWeight();
+    }
+
+    public boolean isAvailable() {
+      return health.isAvailable();
+    }
+
+    /**
+     * @return average response time in nanoseconds, or NaN if server wasn't used yet
+     */
+    public double getAverageLatency() {
+      return latency.getAverage();
+    }
+
+    /**
+     * @param mean response time of other servers in nanoseconds
+     * @return estimated response time in nanoseconds
+     */
+    public double getLatency(double mean) {
+      return latency.getEstimate(mean);
+    }
+
+    @VisibleForTesting
+    void recordLatency(long elapsedNanos) {
+      latency.record(elapsedNanos);
+    }
+
+    /**
+     * Stale pooled connection is detected only when bind fails, so bind is retried once on a new connection,
+     * which is not taken from pool, because other idle connections are likely stale too.
+     */
+    void verifyCredentials(String principal, String credentials, LdapDeadline deadline) throws NamingException {
+      InitialDirContext context = verificationPool.borrow(deadline);
+      LdapDeadline.Watch watch = deadline.watch(context);
+      boolean broken = true;
+      long start = Ticker.systemTicker().read();
+      try {
+        rebind(context, principal, credentials);
+        broken = false;
+        latency.record(Ticker.systemTicker().read() - start);
+        return;
+      } catch (CommunicationException e) {
+        LOG.debug("Retrying password verification on new connection: {}", e.getMessage());
+      } catch (NamingException e) {
+        // Connection is still usable - it stays anonymous until next bind
+        broken = false;
+        throw e;
+      } finally {
+        watch.cancel();
+        verificationPool.release(context, broken);
+      }
+      deadline.check("verify password of " + principal);
+      ContextHelper.closeQuetly(createInitialDirContext(this, principal, credentials, deadline, false));
+    }
+
+    /**
+     * Opens new connection to check whether server is up.
+     *
+     * @return true if server responded, or server was removed
+     */
+    boolean probe() {
+      if (closed) {
+        return true;
+      }
+      InitialDirContext context = null;
+      try {
+        context = createInitialDirContext(this, username, password, LdapDeadline.unlimited(), false);
+        context.getAttributes("", PROBE_ATTRIBUTES);
+        return true;
+      } catch (NamingException e) {
+        LOG.debug("Probe of {} failed: {}", getUrl(), e.getMessage());
+        return !isCommunicationFailure(e);
+      } finally {
+        ContextHelper.closeQuetly(context);
+      }
+    }
+
+    void maintainPools() {
+      bindPool.evictIdle();
+      if (verificationPool != null) {
+        verificationPool.evictIdle();
+      }
+      if (closed || !isAvailable()) {
+        return;
+      }
+      try {
+        bindPool.fill();
+        if (verificationPool != null) {
+          verificationPool.fill();
+        }
+      } catch (NamingException e) {
+        LOG.debug("Unable to open connection to {}: {}", getUrl(), e.getMessage());
+      }
+    }
+
+    void close() {
+      closed = true;
+      bindPool.close();
+      if (verificationPool != null) {
+        verificationPool.close();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return Objects.toStringHelper("Server")
+        .add("url", getUrl())
+        .add("priority", getPriority())
+        .add("weight", getWeight())
+        .add("pool", bindPool)
+        .add("health", health)
+        .add("latency", latency)
+        .toString();
+    }
+  }
+
+  private abstract static class Operation<T> {
+    abstract T execute(Endpoint endpoint) throws NamingException;
+  }
+
 }
@@ -0,0 +1,151 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.base.Ticker;
+import org.sonar.api.utils.SonarException;
+
+import javax.naming.directory.InitialDirContext;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time budget of a single operation, which spans several requests to several servers.
+ * Timeouts of every request are reduced to the remaining time, so that operation does not overrun its budget.
+ */
+class LdapDeadline {
+
+  private final long budgetMs;
+  private final long deadline;
+  private final Ticker ticker;
+
+  private LdapDeadline(long budgetMs, Ticker ticker) {
+    this.budgetMs = budgetMs;
+    this.ticker = ticker;
+    this.deadline = ticker.read() + TimeUnit.MILLISECONDS.toNanos(budgetMs);
+  }
+
+  /**
+   * @param budgetMs time budget, unlimited if not positive
+   */
+  static LdapDeadline start(long budgetMs) {
+    return start(budgetMs, Ticker.systemTicker());
+  }
+
+  static LdapDeadline start(long budgetMs, Ticker ticker) {
+    return new LdapDeadline(budgetMs, ticker);
+  }
+
+  static LdapDeadline unlimited() {
+    return start(0);
+  }
+
+  public boolean isUnlimited() {
+    return budgetMs <= 0;
+  }
+
+  /**
+   * @return remaining time in milliseconds, {@link Long#MAX_VALUE} if unlimited
+   */
+  public long remainingMs() {
+    if (isUnlimited()) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - ticker.read()));
+  }
+
+  /**
+   * @param timeoutMs timeout of a single request, unlimited if not positive
+   * @return timeout reduced to remaining time, at least 1 millisecond, or 0 if both are unlimited
+   */
+  public long cap(long timeoutMs) {
+    if (isUnlimited()) {
+      return Math.max(timeoutMs, 0);
+    }
+    long remainingMs = Math.max(1, remainingMs());
+    return timeoutMs > 0 ? Math.min(timeoutMs, remainingMs) : remainingMs;
+  }
+
+  /**
+   * Read timeout of pooled connection can't be changed, so request in progress is aborted by closing of its context,
+   * once budget is spent. Context is not usable afterwards, and should be given back to pool as broken.
+   *
+   * @return watch, which must be cancelled once context is not used anymore
+   */
+  public Watch watch(final InitialDirContext context) {
+    if (isUnlimited()) {
+      return Watch.NONE;
+    }
+    TimerTask task = new TimerTask() {
+      @Override
+      public void run() {
+        ContextHelper.closeQuetly(context);
+      }
+    };
+    Watchdog.TIMER.schedule(task, Math.max(1, remainingMs()));
+    return new Watch(task);
+  }
+
+  /**
+   * @return true if budget is spent, so that failure of request might be caused by reduced timeout or by watch
+   */
+  public boolean isExceeded() {
+    return !isUnlimited() && deadline - ticker.read() <= 0;
+  }
+
+  /**
+   * @throws SonarException if budget is spent
+   */
+  public void check(String operation) {
+    if (isExceeded()) {
+      throw exceeded(operation);
+    }
+  }
+
+  public SonarException exceeded(String operation) {
+    return new SonarException("Unable to " + operation + ": time budget of " + budgetMs + "ms exceeded");
+  }
+
+  static final class Watch {
+    private static final Watch NONE = new Watch(null);
+
+    private final TimerTask task;
+
+    private Watch(TimerTask task) {
+      this.task = task;
+    }
+
+    public void cancel() {
+      if (task != null) {
+        task.cancel();
+      }
+    }
+  }
+
+  /**
+   * Single daemon thread shared by all deadlines, which is started on first use.
+   */
+  private static final class Watchdog {
+    private static final Timer TIMER = new Timer("LDAP deadline watchdog", true);
+  }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Request with parameters {@code {0}}, {@code {1}}, ..., parsed once, so that searches only bind values of parameters into it.
+ * Values are escaped as required by RFC 4515, exactly like JNDI does for arguments of filter.
+ * Immutable, so a single template is shared by all threads.
+ */
+public final class LdapFilterTemplate {
+
+  private static final Pattern PARAMETER = Pattern.compile("\\{(\\d+)\\}");
+
+  private final String request;
+  // text before every parameter, and after the last one
+  private final String[] literals;
+  private final int[] parameters;
+  private final int parameterCount;
+  private final int literalsLength;
+
+  private LdapFilterTemplate(String request, String[] literals, int[] parameters) {
+    this.request = request;
+    this.literals = literals;
+    this.parameters = parameters;
+    int count = 0;
+    for (int parameter : parameters) {
+      count = Math.max(count, parameter + 1);
+    }
+    this.parameterCount = count;
+    int length = 0;
+    for (String literal : literals) {
+      length += literal.length();
+    }
+    this.literalsLength = length;
+  }
+
+  public static LdapFilterTemplate compile(String request) {
+    List<String> literals = Lists.newArrayList();
+    List<Integer> parameters = Lists.newArrayList();
+    Matcher matcher = PARAMETER.matcher(request);
+    int start = 0;
+    while (matcher.find()) {
+      literals.add(request.substring(start, matcher.start()));
+      parameters.add(Integer.parseInt(matcher.group(1)));
+      start = matcher.end();
+    }
+    literals.add(request.substring(start));
+    int[] indexes = new int[parameters.size()];
+    for (int i = 0; i < indexes.length; i++) {
+      indexes[i] = parameters.get(i);
+    }
+    return new LdapFilterTemplate(request, literals.toArray(new String[literals.size()]), indexes);
+  }
+
+  /**
+   * Request with parameters, from which this template was compiled.
+   */
+  public String getRequest() {
+    return request;
+  }
+
+  /**
+   * Number of values required by {@link #bind(String...)}, i.e. greatest index of parameter plus one.
+   */
+  public int getParameterCount() {
+    return parameterCount;
+  }
+
+  /**
+   * @return filter with escaped values in place of parameters
+   * @throws IllegalArgumentException if less than {@link #getParameterCount()} values specified
+   */
+  public String bind(String... values) {
+    if (values.length < parameterCount) {
+      throw new IllegalArgumentException("Request " + request + " requires " + parameterCount + " parameter(s), but got " + values.length);
+    }
+    StringBuilder result = new StringBuilder(literalsLength + 16 * parameters.length);
+    for (int i = 0; i < parameters.length; i++) {
+      result.append(literals[i]);
+      // same as JNDI
+      appendEscaped(result, String.valueOf(values[parameters[i]]));
+    }
+    return result.append(literals[parameters.length]).toString();
+  }
+
+  /**
+   * @return value, where characters with special meaning in filter are escaped
+   */
+  public static String escape(String value) {
+    StringBuilder result = new StringBuilder(value.length() + 8);
+    appendEscaped(result, value);
+    return result.toString();
+  }
+
+  /**
+   * @return binary value, where every byte is escaped
+   */
+  public static String escape(byte[] value) {
+    StringBuilder result = new StringBuilder(value.length * 3);
+    for (byte b : value) {
+      appendHex(result, b & 0xFF);
+    }
+    return result.toString();
+  }
+
+  private static void appendEscaped(StringBuilder result, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '*':
+        case '(':
+        case ')':
+        case '\\':
+        case '\0':
+          appendHex(result, c);
+          break;
+        default:
+          result.append(c);
+      }
+    }
+  }
+
+  private static void appendHex(StringBuilder result, int b) {
+    result.append('\\').append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xF, 16));
+  }
+
+  @Override
+  public String toString() {
+    return request;
+  }
+
+}
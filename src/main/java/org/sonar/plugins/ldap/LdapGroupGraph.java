@@ -0,0 +1,258 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.base.Predicate;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves nested groups. Parents of every group are searched once and shared by all users for time to live,
+ * so that cost of resolution does not grow with number of users.
+ * Likewise keeps entries of groups referenced by DN, e.g. from {@code memberOf} attribute of users.
+ * Shared by all servers, so keyed by server and DN of group.
+ */
+public class LdapGroupGraph implements LdapChangeListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LdapGroupGraph.class);
+
+  private final ExpiringCache<String, List<SearchResult>> parents;
+  private final ExpiringCache<String, List<SearchResult>> entries;
+  private final long ttlMs;
+  private final int maxSize;
+
+  /**
+   * @param ttlMs time to live of parents and entries of groups, not shared between users if not positive
+   */
+  public LdapGroupGraph(long ttlMs, int maxSize) {
+    this(ttlMs, maxSize, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  LdapGroupGraph(long ttlMs, int maxSize, Ticker ticker) {
+    this.ttlMs = ttlMs;
+    this.maxSize = maxSize;
+    this.parents = ttlMs > 0 ? new ExpiringCache<String, List<SearchResult>>(ttlMs, maxSize, ticker) : null;
+    this.entries = ttlMs > 0 ? new ExpiringCache<String, List<SearchResult>>(ttlMs, maxSize, ticker) : null;
+  }
+
+  /**
+   * Graph which searches for parents every time.
+   */
+  public static LdapGroupGraph disabled() {
+    return new LdapGroupGraph(0, 0);
+  }
+
+  /**
+   * Collects ancestors of specified groups up to {@link LdapGroupMapping#getNestedMaxDepth()} levels.
+   * Every group is visited once, so that cycles are harmless.
+   *
+   * @return specified groups followed by their ancestors
+   */
+  public Collection<SearchResult> resolve(String serverKey, LdapGroupMapping groupMapping, LdapContextFactory contextFactory,
+    Collection<SearchResult> groups) throws NamingException {
+    Map<String, SearchResult> resolved = Maps.newLinkedHashMap();
+    List<SearchResult> level = Lists.newArrayList();
+    for (SearchResult group : groups) {
+      if (resolved.put(normalize(group.getNameInNamespace()), group) == null) {
+        level.add(group);
+      }
+    }
+    for (int depth = 0; depth < groupMapping.getNestedMaxDepth() && !level.isEmpty(); depth++) {
+      List<SearchResult> next = Lists.newArrayList();
+      for (SearchResult group : level) {
+        for (SearchResult parent : getParents(serverKey, groupMapping, contextFactory, group)) {
+          String dn = normalize(parent.getNameInNamespace());
+          if (!resolved.containsKey(dn)) {
+            resolved.put(dn, parent);
+            next.add(parent);
+          }
+        }
+      }
+      level = next;
+    }
+    if (!level.isEmpty()) {
+      LOG.debug("Nesting of groups in {} deeper than {} levels is ignored", serverKey, groupMapping.getNestedMaxDepth());
+    }
+    return resolved.values();
+  }
+
+  /**
+   * Groups outside of base DN of group mapping are skipped, as well as groups which don't match its request,
+   * when they have to be looked up.
+   *
+   * @return entries of groups with specified DNs, which belong to group mapping
+   */
+  public List<SearchResult> findByDn(String serverKey, LdapGroupMapping groupMapping, LdapContextFactory contextFactory,
+    Collection<String> dns) throws NamingException {
+    List<SearchResult> result = Lists.newArrayList();
+    for (String dn : dns) {
+      if (!groupMapping.isUnderBaseDn(dn)) {
+        continue;
+      }
+      String id = groupMapping.getIdFromDn(dn);
+      if (id != null) {
+        result.add(createResult(dn, groupMapping.getIdAttribute(), id));
+      } else {
+        result.addAll(getEntry(serverKey, groupMapping, contextFactory, dn));
+      }
+    }
+    return result;
+  }
+
+  public void invalidateAll() {
+    if (parents != null) {
+      parents.invalidateAll();
+    }
+    if (entries != null) {
+      entries.invalidateAll();
+    }
+  }
+
+  public void usersChanged(String serverKey, Collection<String> logins) {
+    // only groups are cached
+  }
+
+  /**
+   * Evicts entries of modified groups, their parents and parents of their previous members, i.e. lists which contain them.
+   * New members of modified groups are unknown without reading them, so their parents are searched again only after time to live.
+   */
+  public void groupsChanged(final String serverKey, Collection<String> dns) {
+    if (parents == null) {
+      return;
+    }
+    final Set<String> keys = Sets.newHashSet();
+    for (String dn : dns) {
+      keys.add(serverKey + ":" + normalize(dn));
+    }
+    for (String key : keys) {
+      entries.invalidate(key);
+    }
+    parents.invalidateAll(new Predicate<Map.Entry<String, List<SearchResult>>>() {
+      public boolean apply(Map.Entry<String, List<SearchResult>> entry) {
+        if (!entry.getKey().startsWith(serverKey + ":")) {
+          return false;
+        }
+        if (keys.contains(entry.getKey())) {
+          return true;
+        }
+        for (SearchResult parent : entry.getValue()) {
+          if (keys.contains(serverKey + ":" + normalize(parent.getNameInNamespace()))) {
+            return true;
+          }
+        }
+        return false;
+      }
+    });
+  }
+
+  public void allChanged(String serverKey) {
+    invalidateAll();
+  }
+
+  private List<SearchResult> getParents(String serverKey, LdapGroupMapping groupMapping, LdapContextFactory contextFactory, SearchResult group)
+    throws NamingException {
+    String key = serverKey + ":" + normalize(group.getNameInNamespace());
+    List<SearchResult> result = parents == null ? null : parents.get(key);
+    if (result == null) {
+      result = search(groupMapping, contextFactory, group);
+      if (parents != null) {
+        parents.put(key, result);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return entry of group, or empty list if it doesn't exist or doesn't belong to group mapping
+   */
+  private List<SearchResult> getEntry(String serverKey, LdapGroupMapping groupMapping, LdapContextFactory contextFactory, String dn)
+    throws NamingException {
+    String key = serverKey + ":" + normalize(dn);
+    List<SearchResult> result = entries == null ? null : entries.get(key);
+    if (result == null) {
+      result = Lists.newArrayList();
+      try {
+        SearchResult entry = groupMapping.createSearchByDn(contextFactory, dn).findUnique();
+        if (entry != null) {
+          result.add(entry);
+        }
+      } catch (NameNotFoundException e) {
+        LOG.debug("Group {} not found in {}", dn, serverKey);
+      }
+      if (entries != null) {
+        entries.put(key, result);
+      }
+    }
+    return result;
+  }
+
+  private static SearchResult createResult(String dn, String idAttribute, String id) {
+    BasicAttributes attributes = new BasicAttributes(true);
+    attributes.put(idAttribute, id);
+    SearchResult result = new SearchResult(dn, null, attributes);
+    result.setNameInNamespace(dn);
+    return result;
+  }
+
+  private static List<SearchResult> search(LdapGroupMapping groupMapping, LdapContextFactory contextFactory, SearchResult group) throws NamingException {
+    List<SearchResult> result = Lists.newArrayList();
+    NamingEnumeration<SearchResult> enumeration = groupMapping.createSearch(contextFactory, group).find();
+    try {
+      while (enumeration.hasMore()) {
+        result.add(enumeration.next());
+      }
+    } finally {
+      enumeration.close();
+    }
+    return result;
+  }
+
+  private static String normalize(String dn) {
+    return dn.toLowerCase(Locale.ENGLISH);
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+      .add("ttl", ttlMs)
+      .add("maxSize", maxSize)
+      .toString();
+  }
+
+}
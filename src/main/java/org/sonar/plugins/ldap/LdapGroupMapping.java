@@ -21,18 +21,29 @@ package org.sonar.plugins.ldap;
 
 import com.google.common.base.Objects;
 
+import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.slf4j.LoggerFactory;
 import org.sonar.api.config.Settings;
 import org.sonar.api.utils.SonarException;
 
+import javax.annotation.Nullable;
+import javax.naming.InvalidNameException;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
 
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * @author Evgeny Mandrikov
@@ -43,12 +54,24 @@ public class LdapGroupMapping {
   private static final String DEFAULT_ID_ATTRIBUTE = "cn";
   private static final String DEFAULT_MEMBER_ATTRIBUTE = "uniqueMember";
   private static final String DEFAULT_REQUEST = "(&(objectClass=groupOfUniqueNames)(uniqueMember={dn}))";
+  private static final int DEFAULT_NESTED_MAX_DEPTH = 10;
+  private static final String DEFAULT_MEMBER_OF_ATTRIBUTE = "memberOf";
+  private static final Pattern MEMBER_ASSERTION = Pattern.compile("\\(([^()=~<>]+)=\\{(\\d+)\\}\\)");
 
   private final String baseDn;
   private final String idAttribute;
   private final String request;
+  private final LdapFilterTemplate template;
+  private final String requestOfAll;
+  private final String requestOfAllWithMembers;
   private final String[] requiredUserAttributes;
   private final String[] groupRequestServersOverride;
+  private final boolean nested;
+  private final int nestedMaxDepth;
+  private final String[] returnedAttributes;
+  private final Map<String, String> memberAttributes;
+  private final Strategy strategy;
+  private final String memberOfAttribute;
 
   /**
    * Constructs mapping from Sonar settings.
@@ -78,7 +101,28 @@ public class LdapGroupMapping {
       req = StringUtils.replace(req, "{" + requiredUserAttributes[i] + "}", "{" + i + "}");
     }
     this.request = req;
-    
+    this.template = LdapFilterTemplate.compile(req);
+    this.requestOfAll = MEMBER_ASSERTION.matcher(req).replaceAll("(objectClass=*)");
+    this.requestOfAllWithMembers = MEMBER_ASSERTION.matcher(req).replaceAll("($1=*)");
+    this.memberAttributes = new LinkedHashMap<String, String>();
+    Matcher matcher = MEMBER_ASSERTION.matcher(req);
+    while (matcher.find()) {
+      memberAttributes.put(matcher.group(1), requiredUserAttributes[Integer.parseInt(matcher.group(2))]);
+    }
+
+    this.nested = settings.getBoolean(settingsPrefix + ".group.nested");
+    this.nestedMaxDepth = NumberUtils.toInt(settings.getString(settingsPrefix + ".group.nestedMaxDepth"), DEFAULT_NESTED_MAX_DEPTH);
+    if (nested) {
+      // groups are searched for parents in the same way as users, so they must have the same attributes
+      String[] attributes = (String[]) ArrayUtils.removeElement(requiredUserAttributes, "dn");
+      this.returnedAttributes = (String[]) ArrayUtils.add(attributes, 0, idAttribute);
+    } else {
+      this.returnedAttributes = new String[] {idAttribute};
+    }
+
+    this.strategy = Strategy.fromKey(settings.getString(settingsPrefix + ".group.strategy"), settingsPrefix + ".group.strategy");
+    this.memberOfAttribute = StringUtils.defaultString(settings.getString(settingsPrefix + ".group.memberOfAttribute"), DEFAULT_MEMBER_OF_ATTRIBUTE);
+
     String groupSearchPropertyName = settingsPrefix + ".group.searchServers";
     String[] groupSearchServers = settings.getStringArray(groupSearchPropertyName);
     if (groupSearchServers.length > 0) {
@@ -97,6 +141,8 @@ public class LdapGroupMapping {
 
   /**
    * Search for this mapping.
+   *
+   * @param user entry of user, or entry of group when searching for parents of nested groups
    */
   public LdapSearch createSearch(LdapContextFactory contextFactory, SearchResult user) {
     String[] attrs = getRequiredUserAttributes();
@@ -111,9 +157,9 @@ public class LdapGroupMapping {
     }
     return new LdapSearch(contextFactory)
         .setBaseDn(getBaseDn())
-        .setRequest(getRequest())
+        .setRequest(template)
         .setParameters(parameters)
-        .returns(getIdAttribute());
+        .returns(returnedAttributes);
   }
 
   private static String getAttributeValue(SearchResult user, String attributeId) {
@@ -168,6 +214,102 @@ public class LdapGroupMapping {
     return groupRequestServersOverride;
   }
 
+  /**
+   * Attributes of group, which reference members, mapped to attributes of user, which they are compared with.
+   * For example "uniqueMember" to "dn" and "memberUid" to "uid".
+   */
+  public Map<String, String> getMemberAttributes() {
+    return memberAttributes;
+  }
+
+  /**
+   * Request for all groups of this mapping, including groups without members.
+   */
+  public String getRequestOfAll() {
+    return requestOfAll;
+  }
+
+  /**
+   * Search for all groups of this mapping, which have members.
+   */
+  public LdapSearch createSearchOfAll(LdapContextFactory contextFactory, String... attributes) {
+    return new LdapSearch(contextFactory)
+        .setBaseDn(getBaseDn())
+        .setRequest(requestOfAllWithMembers)
+        .setParameters()
+        .returns(attributes);
+  }
+
+  /**
+   * Search for group with known DN, which returns it only if it belongs to this mapping.
+   */
+  public LdapSearch createSearchByDn(LdapContextFactory contextFactory, String dn) {
+    return new LdapSearch(contextFactory)
+        .setBaseDn(dn)
+        .setScope(SearchControls.OBJECT_SCOPE)
+        .setRequest(getRequestOfAll())
+        .setParameters()
+        .returns(returnedAttributes);
+  }
+
+  /**
+   * @return true if entry with specified DN is located under base DN of this mapping
+   */
+  public boolean isUnderBaseDn(String dn) throws InvalidNameException {
+    return StringUtils.isBlank(baseDn) || new LdapName(dn).startsWith(new LdapName(baseDn));
+  }
+
+  /**
+   * @return ID of group with specified DN, if it is the value of RDN and no other attributes of group are required, null otherwise
+   */
+  @Nullable
+  public String getIdFromDn(String dn) throws InvalidNameException {
+    LdapName name = new LdapName(dn);
+    if (name.size() == 0 || returnedAttributes.length > 1) {
+      return null;
+    }
+    Rdn rdn = name.getRdn(name.size() - 1);
+    return idAttribute.equalsIgnoreCase(rdn.getType()) ? rdn.getValue().toString() : null;
+  }
+
+  /**
+   * How groups of user are found.
+   */
+  public Strategy getStrategy() {
+    return strategy;
+  }
+
+  /**
+   * Attribute of user, which contains DNs of its groups. For example "memberOf". Used by {@link Strategy#MEMBER_OF}.
+   */
+  public String getMemberOfAttribute() {
+    return memberOfAttribute;
+  }
+
+  /**
+   * Attributes of user to fetch for this mapping, i.e. {@link #getRequiredUserAttributes()} and attribute with groups if strategy requires it.
+   */
+  public String[] getUserAttributes() {
+    if (strategy == Strategy.MEMBER_OF) {
+      return (String[]) ArrayUtils.add(requiredUserAttributes, memberOfAttribute);
+    }
+    return requiredUserAttributes;
+  }
+
+  /**
+   * Whether groups, which are members of other groups, are resolved to these other groups.
+   */
+  public boolean isNested() {
+    return nested;
+  }
+
+  /**
+   * Maximal number of levels of nesting above groups of user, which are resolved.
+   */
+  public int getNestedMaxDepth() {
+    return nestedMaxDepth;
+  }
+
   @Override
   public String toString() {
     return Objects.toStringHelper(this)
@@ -178,4 +320,44 @@ public class LdapGroupMapping {
         .toString();
   }
 
+  public enum Strategy {
+    /**
+     * Groups are searched by request with attributes of user.
+     */
+    SEARCH("search"),
+    /**
+     * Groups are read from attribute of user, which lists their DNs, as maintained by Active Directory
+     * or by memberof overlay of OpenLDAP. Only groups under base DN are taken. When ID of group is the value of its RDN,
+     * no request is made at all, otherwise group is looked up by DN and checked against request.
+     */
+    MEMBER_OF("memberOf"),
+    /**
+     * Groups are read from constructed attribute {@code tokenGroups} of Active Directory, which lists SIDs of all groups of user,
+     * nested ones included, so that nesting is not resolved by plugin. SIDs are mapped to groups under base DN matching request.
+     */
+    TOKEN_GROUPS("tokenGroups");
+
+    private final String key;
+
+    Strategy(String key) {
+      this.key = key;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    static Strategy fromKey(@Nullable String key, String propertyName) {
+      if (StringUtils.isBlank(key)) {
+        return SEARCH;
+      }
+      for (Strategy strategy : values()) {
+        if (strategy.key.equalsIgnoreCase(key.trim())) {
+          return strategy;
+        }
+      }
+      throw new SonarException("Unknown group strategy '" + key + "' in property '" + propertyName + "'");
+    }
+  }
+
 }
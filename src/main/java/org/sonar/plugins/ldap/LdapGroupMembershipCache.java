@@ -0,0 +1,199 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches groups of users. Entries which are about to expire are refreshed in background,
+ * so that frequent logins never wait for group requests.
+ */
+public class LdapGroupMembershipCache implements LdapChangeListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LdapGroupMembershipCache.class);
+
+  private static final int REFRESH_THREADS = 2;
+  private static final int REFRESH_QUEUE_SIZE = 1000;
+
+  private final long ttlNanos;
+  private final long refreshAheadNanos;
+  private final int maxSize;
+  private final Ticker ticker;
+  private final ExpiringCache<String, Membership> memberships;
+  private final Set<String> refreshing = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  // loads in progress by login, forgotten on invalidation, so that groups loaded before a change are not cached
+  private final ConcurrentMap<String, Object> loads = new ConcurrentHashMap<String, Object>();
+  private final ExecutorService refreshExecutor;
+
+  /**
+   * @param refreshAheadMs entries older than time to live minus this value are refreshed in background
+   */
+  public LdapGroupMembershipCache(long ttlMs, long refreshAheadMs, int maxSize) {
+    this(ttlMs, refreshAheadMs, maxSize, Ticker.systemTicker(), new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 0L, TimeUnit.MILLISECONDS,
+      new LinkedBlockingQueue<Runnable>(REFRESH_QUEUE_SIZE),
+      new ThreadFactoryBuilder().setNameFormat("ldap-groups-refresh-%d").setDaemon(true).build()));
+  }
+
+  @VisibleForTesting
+  LdapGroupMembershipCache(long ttlMs, long refreshAheadMs, int maxSize, Ticker ticker, ExecutorService refreshExecutor) {
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+    this.refreshAheadNanos = TimeUnit.MILLISECONDS.toNanos(refreshAheadMs);
+    this.maxSize = maxSize;
+    this.ticker = ticker;
+    this.memberships = new ExpiringCache<String, Membership>(ttlMs, maxSize, ticker);
+    this.refreshExecutor = refreshExecutor;
+  }
+
+  /**
+   * @param loader loads groups of user from LDAP, when there is no fresh entry in cache
+   * @return groups of user
+   */
+  public Collection<String> get(String login, Function<String, Collection<String>> loader) {
+    Membership membership = memberships.get(login);
+    if (membership == null) {
+      return load(login, loader);
+    }
+    if (ticker.read() - membership.loaded > ttlNanos - refreshAheadNanos) {
+      scheduleRefresh(login, loader);
+    }
+    return membership.groups;
+  }
+
+  public void invalidate(String login) {
+    synchronized (loads) {
+      loads.remove(login);
+      memberships.invalidate(login);
+    }
+  }
+
+  public void invalidateAll() {
+    synchronized (loads) {
+      loads.clear();
+      memberships.invalidateAll();
+    }
+  }
+
+  public void usersChanged(String serverKey, Collection<String> logins) {
+    for (String login : logins) {
+      invalidate(login);
+    }
+  }
+
+  /**
+   * Groups are cached by user. Index of users by group would give only previous members of modified groups,
+   * while new members are unknown without reading them, so all entries are evicted.
+   */
+  public void groupsChanged(String serverKey, Collection<String> dns) {
+    invalidateAll();
+  }
+
+  public void allChanged(String serverKey) {
+    invalidateAll();
+  }
+
+  /**
+   * Stops background refresh.
+   */
+  public void close() {
+    refreshExecutor.shutdownNow();
+  }
+
+  /**
+   * Groups are cached only if user was not invalidated during load, and no other load of the same user started meanwhile.
+   */
+  private Collection<String> load(String login, Function<String, Collection<String>> loader) {
+    Object load = new Object();
+    loads.put(login, load);
+    try {
+      long loaded = ticker.read();
+      Collection<String> groups = ImmutableSet.copyOf(loader.apply(login));
+      synchronized (loads) {
+        if (loads.remove(login, load)) {
+          memberships.put(login, new Membership(groups, loaded));
+        }
+      }
+      return groups;
+    } finally {
+      loads.remove(login, load);
+    }
+  }
+
+  private void scheduleRefresh(final String login, final Function<String, Collection<String>> loader) {
+    if (!refreshing.add(login)) {
+      // already scheduled
+      return;
+    }
+    try {
+      refreshExecutor.execute(new Runnable() {
+        public void run() {
+          try {
+            load(login, loader);
+          } catch (RuntimeException e) {
+            // entry will be loaded synchronously after expiration
+            LOG.debug("Unable to refresh groups of user " + login, e);
+          } finally {
+            refreshing.remove(login);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      refreshing.remove(login);
+      LOG.debug("Refresh of groups of user {} skipped: {}", login, e.getMessage());
+    }
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+      .add("ttl", TimeUnit.NANOSECONDS.toMillis(ttlNanos))
+      .add("refreshAhead", TimeUnit.NANOSECONDS.toMillis(refreshAheadNanos))
+      .add("maxSize", maxSize)
+      .toString();
+  }
+
+  private static final class Membership {
+    private final Collection<String> groups;
+    private final long loaded;
+
+    Membership(Collection<String> groups, long loaded) {
+      this.groups = groups;
+      this.loaded = loaded;
+    }
+  }
+
+}
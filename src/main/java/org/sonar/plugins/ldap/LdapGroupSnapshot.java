@@ -0,0 +1,509 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory copy of all groups of group mappings, periodically reloaded in background.
+ * Groups are indexed by values of their member attributes, so that groups of a user are found without requests to LDAP.
+ * Groups of a server are searched as usual until its first load succeeds, and previous copy is kept when reload fails.
+ * Between reloads, groups reported by {@link LdapChangePoller} are updated one by one.
+ * <p>
+ * Member attributes are taken from request of group mapping, so several member attributes in request are treated as alternatives.
+ * Values are compared ignoring case.
+ */
+public class LdapGroupSnapshot implements LdapChangeListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LdapGroupSnapshot.class);
+
+  // rough sizes of objects in bytes, enough to estimate order of memory use
+  private static final int OBJECT_OVERHEAD = 16;
+  private static final int REFERENCE_SIZE = 8;
+  private static final int MAP_ENTRY_SIZE = 32;
+
+  private final Map<String, LdapContextFactory> contextFactories;
+  private final Map<String, LdapGroupMapping> groupMappings;
+  private final long intervalMs;
+  private final ConcurrentMap<String, Index> indexes = new ConcurrentHashMap<String, Index>();
+  private final ConcurrentMap<String, PendingChanges> reloading = new ConcurrentHashMap<String, PendingChanges>();
+  private volatile long refreshDurationMs = -1;
+  private ScheduledExecutorService executor;
+
+  LdapGroupSnapshot(Map<String, LdapContextFactory> contextFactories, Map<String, LdapGroupMapping> groupMappings, long intervalMs) {
+    this.contextFactories = contextFactories;
+    this.groupMappings = groupMappings;
+    this.intervalMs = intervalMs;
+  }
+
+  public synchronized void start() {
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("ldap-groups-snapshot").setDaemon(true).build());
+    executor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        refresh();
+      }
+    }, 0, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Loads groups of all group mappings.
+   */
+  @VisibleForTesting
+  void refresh() {
+    long start = System.nanoTime();
+    for (String serverKey : groupMappings.keySet()) {
+      refresh(serverKey);
+    }
+    refreshDurationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    LOG.info("Snapshot of groups refreshed in {}ms", refreshDurationMs);
+  }
+
+  private void refresh(String serverKey) {
+    // groups changed during load might have been read before change, so they are loaded again after publication
+    PendingChanges pending = new PendingChanges();
+    reloading.put(serverKey, pending);
+    boolean loaded = false;
+    try {
+      Index index = load(serverKey);
+      indexes.put(serverKey, index);
+      loaded = true;
+      LOG.info("Loaded snapshot of {} groups with {} memberships from {}, using about {} KB of memory",
+        new Object[] {index.groupsByDn.size(), index.membershipCount, serverKey, index.memoryEstimate / 1024});
+    } catch (NamingException e) {
+      LOG.warn("Unable to load snapshot of groups from " + serverKey + ", previous one is kept: " + e.getMessage());
+    } catch (RuntimeException e) {
+      // exception would cancel further executions
+      LOG.error("Unable to load snapshot of groups from " + serverKey, e);
+    } finally {
+      reloading.remove(serverKey, pending);
+    }
+    List<String> dns = pending.close();
+    if (loaded && !dns.isEmpty()) {
+      LOG.debug("Updating {} groups changed during load of snapshot of {}", dns.size(), serverKey);
+      groupsChanged(serverKey, dns);
+    }
+  }
+
+  /**
+   * @param user entry of user with attributes required by group mapping
+   * @return ids of groups of user, or null if groups of specified server are not loaded yet
+   */
+  @Nullable
+  public Collection<String> getGroups(String serverKey, SearchResult user) throws NamingException {
+    Index index = indexes.get(serverKey);
+    if (index == null) {
+      return null;
+    }
+    LdapGroupMapping groupMapping = groupMappings.get(serverKey);
+    Set<Group> resolved = Sets.newLinkedHashSet();
+    List<Group> level = Lists.newArrayList();
+    for (String key : keys(groupMapping, user.getNameInNamespace(), user.getAttributes())) {
+      for (Group group : index.get(key)) {
+        if (resolved.add(group)) {
+          level.add(group);
+        }
+      }
+    }
+    int maxDepth = groupMapping.isNested() ? groupMapping.getNestedMaxDepth() : 0;
+    for (int depth = 0; depth < maxDepth && !level.isEmpty(); depth++) {
+      List<Group> next = Lists.newArrayList();
+      for (Group group : level) {
+        for (String key : group.keys) {
+          for (Group parent : index.get(key)) {
+            if (resolved.add(parent)) {
+              next.add(parent);
+            }
+          }
+        }
+      }
+      level = next;
+    }
+    Set<String> result = Sets.newHashSet();
+    for (Group group : resolved) {
+      result.add(group.id);
+    }
+    return result;
+  }
+
+  /**
+   * @return estimated memory used by loaded groups, in bytes
+   */
+  public long getMemoryEstimate() {
+    long result = 0;
+    for (Index index : indexes.values()) {
+      result += index.memoryEstimate;
+    }
+    return result;
+  }
+
+  /**
+   * @return duration of last refresh of all servers in milliseconds, or -1 if not refreshed yet
+   */
+  public long getRefreshDurationMs() {
+    return refreshDurationMs;
+  }
+
+  public void usersChanged(String serverKey, Collection<String> logins) {
+    // memberships are stored in groups
+  }
+
+  /**
+   * Loads specified groups again and replaces them in snapshot of server.
+   */
+  public void groupsChanged(String serverKey, Collection<String> dns) {
+    if (!groupMappings.containsKey(serverKey)) {
+      return;
+    }
+    // recorded before snapshot is taken, so that either reload applies changes again, or snapshot is already reloaded
+    PendingChanges pending = reloading.get(serverKey);
+    if (pending != null) {
+      pending.add(dns);
+    }
+    Index index = indexes.get(serverKey);
+    if (index == null) {
+      return;
+    }
+    try {
+      List<Group> groups = Lists.newArrayList();
+      for (String dn : dns) {
+        Group group = loadByDn(serverKey, dn);
+        if (group != null) {
+          groups.add(group);
+        }
+      }
+      index.update(dns, groups);
+      LOG.debug("Updated {} groups in snapshot of {}", dns.size(), serverKey);
+    } catch (NamingException e) {
+      LOG.warn("Unable to update snapshot of groups from " + serverKey + ", it will be reloaded: " + e.getMessage());
+      allChanged(serverKey);
+    }
+  }
+
+  /**
+   * Schedules reload of snapshot of server.
+   */
+  public synchronized void allChanged(final String serverKey) {
+    if (executor == null || !groupMappings.containsKey(serverKey)) {
+      return;
+    }
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          refresh(serverKey);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOG.debug("Reload of snapshot of groups from {} skipped: {}", serverKey, e.getMessage());
+    }
+  }
+
+  public synchronized void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  private Index load(String serverKey) throws NamingException {
+    LdapGroupMapping groupMapping = groupMappings.get(serverKey);
+    LdapContextFactory contextFactory = contextFactories.get(serverKey);
+    Index index = new Index();
+    // remaining ranges are requested after search, which holds a connection until it is read
+    List<SearchResult> ranged = Lists.newArrayList();
+    NamingEnumeration<SearchResult> result = groupMapping.createSearchOfAll(contextFactory, getAttributes(groupMapping)).find();
+    try {
+      while (result.hasMore()) {
+        SearchResult entry = result.next();
+        if (hasMoreValues(groupMapping, entry)) {
+          ranged.add(entry);
+        } else {
+          add(index, toGroup(contextFactory, groupMapping, entry));
+        }
+      }
+    } finally {
+      result.close();
+    }
+    for (SearchResult entry : ranged) {
+      add(index, toGroup(contextFactory, groupMapping, entry));
+    }
+    return index;
+  }
+
+  private static void add(Index index, @Nullable Group group) {
+    if (group != null) {
+      index.add(group, false);
+    }
+  }
+
+  /**
+   * @return group, or null if it was removed or doesn't belong to group mapping anymore
+   */
+  @Nullable
+  private Group loadByDn(String serverKey, String dn) throws NamingException {
+    LdapGroupMapping groupMapping = groupMappings.get(serverKey);
+    try {
+      SearchResult entry = new LdapSearch(contextFactories.get(serverKey))
+        .setBaseDn(dn)
+        .setScope(SearchControls.OBJECT_SCOPE)
+        .setRequest(groupMapping.getRequestOfAll())
+        .setParameters()
+        .returns(getAttributes(groupMapping))
+        .findUnique();
+      return entry == null ? null : toGroup(contextFactories.get(serverKey), groupMapping, entry);
+    } catch (NameNotFoundException e) {
+      return null;
+    }
+  }
+
+  private static String[] getAttributes(LdapGroupMapping groupMapping) {
+    Set<String> attributes = Sets.newLinkedHashSet();
+    attributes.add(groupMapping.getIdAttribute());
+    attributes.addAll(groupMapping.getMemberAttributes().keySet());
+    if (groupMapping.isNested()) {
+      attributes.addAll(groupMapping.getMemberAttributes().values());
+      attributes.remove("dn");
+    }
+    return attributes.toArray(new String[attributes.size()]);
+  }
+
+  private static boolean hasMoreValues(LdapGroupMapping groupMapping, SearchResult entry) {
+    for (String memberAttribute : groupMapping.getMemberAttributes().keySet()) {
+      if (LdapRangedAttribute.hasMoreValues(entry.getAttributes(), memberAttribute)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Values of member attributes, which were not returned in entry because of their number, are requested range by range.
+   */
+  @Nullable
+  private static Group toGroup(LdapContextFactory contextFactory, LdapGroupMapping groupMapping, SearchResult entry) throws NamingException {
+    Attributes attributes = entry.getAttributes();
+    Attribute id = attributes.get(groupMapping.getIdAttribute());
+    if (id == null) {
+      return null;
+    }
+    List<String> keys = groupMapping.isNested() ? keys(groupMapping, entry.getNameInNamespace(), attributes) : Collections.<String>emptyList();
+    List<String> memberKeys = Lists.newArrayList();
+    for (String memberAttribute : groupMapping.getMemberAttributes().keySet()) {
+      NamingEnumeration<Object> values = LdapRangedAttribute.getAll(contextFactory, entry.getNameInNamespace(), attributes, memberAttribute);
+      while (values.hasMore()) {
+        memberKeys.add(key(memberAttribute, (String) values.next()));
+      }
+    }
+    return new Group(normalize(entry.getNameInNamespace()), (String) id.get(),
+      keys.toArray(new String[keys.size()]), memberKeys.toArray(new String[memberKeys.size()]));
+  }
+
+  /**
+   * @return values of member attributes of groups, which reference specified entry
+   */
+  private static List<String> keys(LdapGroupMapping groupMapping, String dn, Attributes attributes) throws NamingException {
+    List<String> result = Lists.newArrayList();
+    for (Map.Entry<String, String> memberAttribute : groupMapping.getMemberAttributes().entrySet()) {
+      String value;
+      if ("dn".equals(memberAttribute.getValue())) {
+        value = dn;
+      } else {
+        Attribute attribute = attributes.get(memberAttribute.getValue());
+        value = attribute == null ? null : (String) attribute.get();
+      }
+      if (value != null) {
+        result.add(key(memberAttribute.getKey(), value));
+      }
+    }
+    return result;
+  }
+
+  private static String key(String memberAttribute, String value) {
+    return normalize(memberAttribute + "=" + value);
+  }
+
+  private static String normalize(String value) {
+    return value.toLowerCase(Locale.ENGLISH);
+  }
+
+  private static long sizeOf(String s) {
+    return OBJECT_OVERHEAD * 2 + 2L * s.length();
+  }
+
+  /**
+   * Groups of a server. Published lists of groups are never modified, but replaced key by key,
+   * so that they are read without locking, while changes are applied one after another.
+   */
+  private static final class Index {
+    private final ConcurrentMap<String, List<Group>> groupsByMember = new ConcurrentHashMap<String, List<Group>>();
+    private final ConcurrentMap<String, Group> groupsByDn = new ConcurrentHashMap<String, Group>();
+    private volatile int membershipCount;
+    private volatile long memoryEstimate;
+
+    Collection<Group> get(String key) {
+      List<Group> result = groupsByMember.get(key);
+      return result == null ? Collections.<Group>emptyList() : result;
+    }
+
+    /**
+     * Replaces groups with specified DNs by specified groups, copying only lists of affected keys.
+     * New version of group is added before previous one is removed, so that its members never miss it.
+     */
+    synchronized void update(Collection<String> dns, Collection<Group> groups) {
+      Set<String> replaced = Sets.newHashSet();
+      for (Group group : groups) {
+        Group previous = groupsByDn.get(group.dn);
+        add(group, true);
+        if (previous != null) {
+          removeMemberships(previous);
+        }
+        replaced.add(group.dn);
+      }
+      for (String dn : dns) {
+        String normalized = normalize(dn);
+        if (!replaced.contains(normalized)) {
+          Group previous = groupsByDn.remove(normalized);
+          if (previous != null) {
+            memoryEstimate -= MAP_ENTRY_SIZE + previous.getMemoryEstimate();
+            removeMemberships(previous);
+          }
+        }
+      }
+    }
+
+    /**
+     * @param shared whether index is already published, so that its lists must be copied instead of modified
+     */
+    private synchronized void add(Group group, boolean shared) {
+      Group previous = groupsByDn.put(group.dn, group);
+      if (previous != null) {
+        memoryEstimate -= MAP_ENTRY_SIZE + previous.getMemoryEstimate();
+      }
+      memoryEstimate += MAP_ENTRY_SIZE + group.getMemoryEstimate();
+      for (String key : group.memberKeys) {
+        List<Group> groups = groupsByMember.get(key);
+        if (groups == null) {
+          groups = Lists.newArrayListWithCapacity(1);
+          memoryEstimate += MAP_ENTRY_SIZE + OBJECT_OVERHEAD * 2;
+        } else if (groups.contains(group)) {
+          continue;
+        } else if (shared) {
+          groups = Lists.newArrayList(groups);
+        }
+        groups.add(group);
+        groupsByMember.put(key, groups);
+        membershipCount++;
+        memoryEstimate += REFERENCE_SIZE;
+      }
+    }
+
+    private void removeMemberships(Group group) {
+      for (String key : group.memberKeys) {
+        List<Group> groups = groupsByMember.get(key);
+        if (groups == null || !groups.contains(group)) {
+          continue;
+        }
+        if (groups.size() == 1) {
+          groupsByMember.remove(key);
+          memoryEstimate -= MAP_ENTRY_SIZE + OBJECT_OVERHEAD * 2;
+        } else {
+          List<Group> copy = Lists.newArrayList(groups);
+          copy.remove(group);
+          groupsByMember.put(key, copy);
+        }
+        membershipCount--;
+        memoryEstimate -= REFERENCE_SIZE;
+      }
+    }
+  }
+
+  /**
+   * DNs of groups reported as changed while snapshot of a server is loaded.
+   */
+  private static final class PendingChanges {
+    private final Set<String> dns = Sets.newLinkedHashSet();
+    private boolean closed;
+
+    synchronized void add(Collection<String> changed) {
+      if (!closed) {
+        dns.addAll(changed);
+      }
+    }
+
+    /**
+     * @return reported DNs, while later changes are applied to published snapshot directly
+     */
+    synchronized List<String> close() {
+      closed = true;
+      return Lists.newArrayList(dns);
+    }
+  }
+
+  private static final class Group {
+    private final String dn;
+    private final String id;
+    private final String[] keys;
+    private final String[] memberKeys;
+
+    Group(String dn, String id, String[] keys, String[] memberKeys) {
+      this.dn = dn;
+      this.id = id;
+      this.keys = keys;
+      this.memberKeys = memberKeys;
+    }
+
+    long getMemoryEstimate() {
+      long result = OBJECT_OVERHEAD * 3 + sizeOf(dn) + sizeOf(id) + (long) REFERENCE_SIZE * (keys.length + memberKeys.length);
+      for (String key : keys) {
+        result += sizeOf(key);
+      }
+      for (String key : memberKeys) {
+        result += sizeOf(key);
+      }
+      return result;
+    }
+  }
+
+}
@@ -19,14 +19,18 @@
  */
 package org.sonar.plugins.ldap;
 
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Sets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonar.api.security.ExternalGroupsProvider;
 import org.sonar.api.utils.SonarException;
 
+import javax.annotation.Nullable;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.SearchResult;
 
@@ -36,6 +40,12 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * @author Evgeny Mandrikov
@@ -44,14 +54,84 @@ public class LdapGroupsProvider extends ExternalGroupsProvider {
 
   private static final Logger LOG = LoggerFactory.getLogger(LdapGroupsProvider.class);
 
+  /**
+   * Constructed attribute, which is returned only by search with base scope.
+   */
+  static final String TOKEN_GROUPS_ATTRIBUTE = "tokenGroups";
+
   private final Map<String, LdapContextFactory> contextFactories;
   private final Map<String, LdapUserMapping> userMappings;
   private final Map<String, LdapGroupMapping> groupMappings;
+  private final LdapUserCache userCache;
+  private final LdapGroupMembershipCache membershipCache;
+  private final ExecutorService searchExecutor;
+  private final long searchTimeoutMs;
+  private final LdapGroupGraph groupGraph;
+  private final LdapGroupSnapshot snapshot;
+  private final LdapSidCache sidCache;
+  private final Function<String, Collection<String>> loader = new Function<String, Collection<String>>() {
+    public Collection<String> apply(String username) {
+      return loadGroups(username);
+    }
+  };
 
   public LdapGroupsProvider(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings, Map<String, LdapGroupMapping> groupMapping) {
+    this(contextFactories, userMappings, groupMapping, LdapUserCache.disabled(), null);
+  }
+
+  /**
+   * @param userCache cache of user DNs shared with authenticator and users provider
+   * @param membershipCache cache of groups, or null to always request LDAP
+   */
+  public LdapGroupsProvider(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings, Map<String, LdapGroupMapping> groupMapping,
+    LdapUserCache userCache, @Nullable LdapGroupMembershipCache membershipCache) {
+    this(contextFactories, userMappings, groupMapping, userCache, membershipCache, null, 0);
+  }
+
+  /**
+   * @param searchExecutor executor to search for groups on all servers of group mapping at once, or null to search on servers one after another
+   * @param searchTimeoutMs time to wait for groups from all servers, when searching in parallel
+   */
+  public LdapGroupsProvider(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings, Map<String, LdapGroupMapping> groupMapping,
+    LdapUserCache userCache, @Nullable LdapGroupMembershipCache membershipCache, @Nullable ExecutorService searchExecutor, long searchTimeoutMs) {
+    this(contextFactories, userMappings, groupMapping, userCache, membershipCache, searchExecutor, searchTimeoutMs, LdapGroupGraph.disabled());
+  }
+
+  /**
+   * @param groupGraph parents of groups shared by all users, used by group mappings with nested groups
+   */
+  public LdapGroupsProvider(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings, Map<String, LdapGroupMapping> groupMapping,
+    LdapUserCache userCache, @Nullable LdapGroupMembershipCache membershipCache, @Nullable ExecutorService searchExecutor, long searchTimeoutMs,
+    LdapGroupGraph groupGraph) {
+    this(contextFactories, userMappings, groupMapping, userCache, membershipCache, searchExecutor, searchTimeoutMs, groupGraph, null);
+  }
+
+  /**
+   * @param snapshot in-memory copy of groups, or null to always search for groups
+   */
+  public LdapGroupsProvider(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings, Map<String, LdapGroupMapping> groupMapping,
+    LdapUserCache userCache, @Nullable LdapGroupMembershipCache membershipCache, @Nullable ExecutorService searchExecutor, long searchTimeoutMs,
+    LdapGroupGraph groupGraph, @Nullable LdapGroupSnapshot snapshot) {
+    this(contextFactories, userMappings, groupMapping, userCache, membershipCache, searchExecutor, searchTimeoutMs, groupGraph, snapshot,
+      LdapSidCache.disabled());
+  }
+
+  /**
+   * @param sidCache IDs of groups by SIDs shared by all users, used by group mappings with {@code tokenGroups} strategy
+   */
+  public LdapGroupsProvider(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings, Map<String, LdapGroupMapping> groupMapping,
+    LdapUserCache userCache, @Nullable LdapGroupMembershipCache membershipCache, @Nullable ExecutorService searchExecutor, long searchTimeoutMs,
+    LdapGroupGraph groupGraph, @Nullable LdapGroupSnapshot snapshot, LdapSidCache sidCache) {
     this.contextFactories = contextFactories;
     this.userMappings = userMappings;
     this.groupMappings = groupMapping;
+    this.userCache = userCache;
+    this.membershipCache = membershipCache;
+    this.searchExecutor = searchExecutor;
+    this.searchTimeoutMs = searchTimeoutMs;
+    this.groupGraph = groupGraph;
+    this.snapshot = snapshot;
+    this.sidCache = sidCache;
   }
 
   /**
@@ -59,13 +139,40 @@ public class LdapGroupsProvider extends ExternalGroupsProvider {
    */
   public Collection<String> doGetGroups(String username) {
     checkPrerequisites(username);
+    if (membershipCache == null) {
+      return loadGroups(username);
+    }
+    return membershipCache.get(username, loader);
+  }
+
+  /**
+   * Stops background refresh of groups and threads used for parallel search.
+   */
+  public void close() {
+    if (snapshot != null) {
+      snapshot.close();
+    }
+    if (membershipCache != null) {
+      membershipCache.close();
+    }
+    if (searchExecutor != null) {
+      searchExecutor.shutdownNow();
+    }
+  }
+
+  private Collection<String> loadGroups(String username) {
     Set<String> groups = Sets.newHashSet();
     List<SonarException> sonarExceptions = new ArrayList<SonarException>();
-    for (String serverKey : userMappings.keySet()) {
+    for (String serverKey : userCache.orderServerKeys(username, userMappings.keySet())) {
       if (!groupMappings.containsKey(serverKey)) {
         // No group mapping for this ldap instance.
         continue;
       }
+      if (!contextFactories.get(serverKey).isAvailable()) {
+        LOG.debug("Skipping server {}, which is not available", serverKey);
+        sonarExceptions.add(new SonarException("Unable to retrieve groups for user " + username + " in " + serverKey + ": server is not available"));
+        continue;
+      }
       SearchResult searchResult = searchUserGroups(username, sonarExceptions, serverKey);
 
       if (searchResult != null) {
@@ -76,13 +183,12 @@ public class LdapGroupsProvider extends ExternalGroupsProvider {
           if (serverKeysForGroup == null) {
             serverKeysForGroup = new String[] { serverKey };
           }
-          for(String serverKeyForGroup : serverKeysForGroup)
-          {
-            NamingEnumeration<SearchResult> result = groupMappings
-                .get(serverKeyForGroup)
-                .createSearch(contextFactories.get(serverKeyForGroup), searchResult)
-                .find();
-              groups.addAll(mapGroups(serverKey, result));
+          if (searchExecutor == null || serverKeysForGroup.length < 2) {
+            for (String serverKeyForGroup : serverKeysForGroup) {
+              groups.addAll(searchGroups(serverKey, serverKeyForGroup, searchResult));
+            }
+          } else {
+            groups.addAll(searchGroupsInParallel(username, serverKey, serverKeysForGroup, searchResult));
           }
           // if no exceptions occur, we found the user and his groups and mapped his details.
           break;
@@ -100,6 +206,139 @@ public class LdapGroupsProvider extends ExternalGroupsProvider {
     return groups;
   }
 
+  private Collection<String> searchGroups(String serverKey, String serverKeyForGroup, SearchResult user) throws NamingException {
+    LdapGroupMapping groupMapping = groupMappings.get(serverKeyForGroup);
+    LdapContextFactory contextFactory = contextFactories.get(serverKeyForGroup);
+    if (groupMapping.getStrategy() == LdapGroupMapping.Strategy.TOKEN_GROUPS) {
+      // snapshot would miss nested groups, which are included in tokenGroups
+      return sidCache.resolve(serverKeyForGroup, groupMapping, contextFactory, getTokenGroups(serverKey, user));
+    }
+    if (snapshot != null) {
+      Collection<String> groups = snapshot.getGroups(serverKeyForGroup, user);
+      if (groups != null) {
+        return groups;
+      }
+    }
+    if (groupMapping.getStrategy() == LdapGroupMapping.Strategy.MEMBER_OF) {
+      List<SearchResult> direct = groupGraph.findByDn(serverKeyForGroup, groupMapping, contextFactory, getMemberOf(serverKey, groupMapping, user));
+      return mapGroups(serverKey, serverKeyForGroup, direct);
+    }
+    NamingEnumeration<SearchResult> result = groupMapping
+        .createSearch(contextFactory, user)
+        .find();
+    if (!groupMapping.isNested()) {
+      return mapGroups(serverKey, result);
+    }
+    List<SearchResult> direct = new ArrayList<SearchResult>();
+    try {
+      while (result.hasMore()) {
+        direct.add(result.next());
+      }
+    } finally {
+      result.close();
+    }
+    return mapGroups(serverKey, serverKeyForGroup, direct);
+  }
+
+  /**
+   * @return DNs of groups listed in entry of user, all ranges included
+   */
+  private List<String> getMemberOf(String serverKey, LdapGroupMapping groupMapping, SearchResult user) throws NamingException {
+    List<String> dns = new ArrayList<String>();
+    NamingEnumeration<Object> values = LdapRangedAttribute.getAll(contextFactories.get(serverKey), user.getNameInNamespace(), user.getAttributes(),
+      groupMapping.getMemberOfAttribute());
+    while (values.hasMore()) {
+      dns.add((String) values.next());
+    }
+    return dns;
+  }
+
+  /**
+   * @return SIDs of all groups of user, read by DN of user
+   */
+  private List<byte[]> getTokenGroups(String serverKey, SearchResult user) throws NamingException {
+    List<byte[]> sids = new ArrayList<byte[]>();
+    SearchResult entry = userMappings.get(serverKey)
+        .createSearchByDn(contextFactories.get(serverKey), user.getNameInNamespace())
+        .returns(TOKEN_GROUPS_ATTRIBUTE)
+        .findUnique();
+    Attribute tokenGroups = entry == null ? null : entry.getAttributes().get(TOKEN_GROUPS_ATTRIBUTE);
+    if (tokenGroups != null) {
+      NamingEnumeration<?> values = tokenGroups.getAll();
+      while (values.hasMore()) {
+        Object value = values.next();
+        if (value instanceof byte[]) {
+          sids.add((byte[]) value);
+        }
+      }
+    }
+    return sids;
+  }
+
+  /**
+   * Maps specified groups, and their ancestors if group mapping resolves nested groups.
+   */
+  private Collection<String> mapGroups(String serverKey, String serverKeyForGroup, List<SearchResult> direct) throws NamingException {
+    LdapGroupMapping groupMapping = groupMappings.get(serverKeyForGroup);
+    Collection<SearchResult> resolved = direct;
+    if (groupMapping.isNested()) {
+      resolved = groupGraph.resolve(serverKeyForGroup, groupMapping, contextFactories.get(serverKeyForGroup), direct);
+    }
+    Set<String> groups = new HashSet<String>();
+    for (SearchResult group : resolved) {
+      groups.add(getGroupId(serverKey, group));
+    }
+    return groups;
+  }
+
+  /**
+   * Searches for groups on all specified servers at once, and waits for them no longer than search timeout.
+   * Groups from servers which failed or didn't respond in time are skipped, unless all servers failed.
+   *
+   * @throws NamingException if search failed on all servers
+   */
+  private Collection<String> searchGroupsInParallel(String username, final String serverKey, String[] serverKeysForGroup, final SearchResult user)
+    throws NamingException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(searchTimeoutMs);
+    List<Future<Collection<String>>> futures = new ArrayList<Future<Collection<String>>>();
+    for (final String serverKeyForGroup : serverKeysForGroup) {
+      futures.add(searchExecutor.submit(new Callable<Collection<String>>() {
+        public Collection<String> call() throws NamingException {
+          return searchGroups(serverKey, serverKeyForGroup, user);
+        }
+      }));
+    }
+    Set<String> groups = new HashSet<String>();
+    NamingException failure = null;
+    boolean succeeded = false;
+    try {
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          groups.addAll(futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+          succeeded = true;
+        } catch (ExecutionException e) {
+          Throwables.propagateIfPossible(e.getCause());
+          failure = (NamingException) e.getCause();
+          LOG.warn("Unable to retrieve groups for user {} in {}: {}", new Object[] {username, serverKeysForGroup[i], failure.getMessage()});
+        } catch (TimeoutException e) {
+          failure = new NamingException("Timeout after " + searchTimeoutMs + "ms while retrieving groups in " + serverKeysForGroup[i]);
+          LOG.warn("Unable to retrieve groups for user {} in {} within {}ms", new Object[] {username, serverKeysForGroup[i], searchTimeoutMs});
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new NamingException("Interrupted while retrieving groups for user " + username);
+    } finally {
+      for (Future<Collection<String>> future : futures) {
+        future.cancel(true);
+      }
+    }
+    if (!succeeded && failure != null) {
+      throw failure;
+    }
+    return groups;
+  }
+
   private void checkResults(Set<String> groups, List<SonarException> sonarExceptions) {
     if (groups.isEmpty() && !sonarExceptions.isEmpty()) {
       // No groups found and there is an exception so there is a reason the user could not be found.
@@ -118,9 +357,8 @@ public class LdapGroupsProvider extends ExternalGroupsProvider {
     try {
       LOG.debug("Requesting groups for user {}", username);
 
-      searchResult = userMappings.get(serverKey).createSearch(contextFactories.get(serverKey), username)
-        .returns(groupMappings.get(serverKey).getRequiredUserAttributes())
-        .findUnique();
+      searchResult = userCache.find(serverKey, userMappings.get(serverKey), contextFactories.get(serverKey), username,
+        groupMappings.get(serverKey).getUserAttributes());
     } catch (NamingException e) {
       // just in case if Sonar silently swallowed exception
       LOG.debug(e.getMessage(), e);
@@ -139,13 +377,19 @@ public class LdapGroupsProvider extends ExternalGroupsProvider {
    */
   private Collection<String> mapGroups(String serverKey, NamingEnumeration<SearchResult> searchResult) throws NamingException {
     Set<String> groups = new HashSet<String>();
-    while (searchResult.hasMoreElements()) {
-      SearchResult obj = (SearchResult) searchResult.nextElement();
-      Attributes attributes = obj.getAttributes();
-      String groupId = (String) attributes.get(groupMappings.get(serverKey).getIdAttribute()).get();
-      groups.add(groupId);
+    try {
+      while (searchResult.hasMore()) {
+        groups.add(getGroupId(serverKey, searchResult.next()));
+      }
+    } finally {
+      searchResult.close();
     }
     return groups;
   }
 
+  private String getGroupId(String serverKey, SearchResult group) throws NamingException {
+    Attributes attributes = group.getAttributes();
+    return (String) attributes.get(groupMappings.get(serverKey).getIdAttribute()).get();
+  }
+
 }
@@ -0,0 +1,100 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically probes LDAP servers, which are down, in background until they respond.
+ * Also runs maintenance of connection pools on the same thread, which is started only when first task is scheduled.
+ */
+class LdapHealthProber {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LdapHealthProber.class);
+
+  private final long intervalMs;
+  private ScheduledExecutorService executor;
+  private boolean closed = false;
+
+  LdapHealthProber(long intervalMs) {
+    this.intervalMs = intervalMs;
+  }
+
+  /**
+   * Schedules probe of specified server, which is repeated until server becomes available.
+   */
+  public synchronized void schedule(final LdapContextFactory.Endpoint endpoint) {
+    if (closed) {
+      return;
+    }
+    try {
+      getExecutor().schedule(new Runnable() {
+        public void run() {
+          if (!endpoint.probe()) {
+            schedule(endpoint);
+          }
+        }
+      }, intervalMs, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      LOG.debug("Probe of {} not scheduled: {}", endpoint.getUrl(), e.getMessage());
+    }
+  }
+
+  /**
+   * Runs specified task now and then periodically with specified delay between runs, until prober is closed.
+   */
+  public synchronized void scheduleWithFixedDelay(final Runnable task, long delayMs) {
+    if (closed) {
+      return;
+    }
+    getExecutor().scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          // exception would cancel further executions
+          LOG.error("Background task failed", e);
+        }
+      }
+    }, 0, delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  private ScheduledExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("ldap-health-probe").setDaemon(true).build());
+    }
+    return executor;
+  }
+
+  public synchronized void close() {
+    closed = true;
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+}
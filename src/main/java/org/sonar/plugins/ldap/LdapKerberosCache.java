@@ -0,0 +1,131 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.base.Ticker;
+
+import javax.annotation.Nullable;
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosTicket;
+
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers principals verified by Kerberos until expiration of their ticket-granting tickets,
+ * so that repeated logins within ticket lifetime do not require a round trip to KDC.
+ * Neither passwords nor tickets are stored - only salted PBKDF2 hashes of passwords.
+ */
+public class LdapKerberosCache {
+
+  private final SecureRandom random = new SecureRandom();
+  private final ExpiringCache<String, Credentials> credentials;
+  private final long maxTtlMs;
+  private final int maxSize;
+  private final Ticker ticker;
+
+  /**
+   * @param maxTtlMs upper bound of time to live, which is otherwise defined by lifetime of ticket
+   */
+  public LdapKerberosCache(long maxTtlMs, int maxSize) {
+    this(maxTtlMs, maxSize, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  LdapKerberosCache(long maxTtlMs, int maxSize, Ticker ticker) {
+    this.maxTtlMs = maxTtlMs;
+    this.maxSize = maxSize;
+    this.ticker = ticker;
+    this.credentials = new ExpiringCache<String, Credentials>(maxTtlMs, maxSize, ticker);
+  }
+
+  /**
+   * @return true if specified principal was verified with specified password, and its ticket is not expired yet
+   */
+  public boolean isAuthenticated(String principal, @Nullable String password) {
+    if (password == null) {
+      return false;
+    }
+    Credentials cached = credentials.get(principal);
+    if (cached == null) {
+      return false;
+    }
+    if (ticker.read() - cached.expiresAt >= 0) {
+      credentials.invalidate(principal);
+      return false;
+    }
+    return cached.verifier.matches(password);
+  }
+
+  /**
+   * Remembers principal until expiration of the ticket-granting ticket obtained by login.
+   * Must be called before logout, which destroys tickets of subject.
+   */
+  public void authenticated(String principal, String password, Subject subject) {
+    Date endTime = null;
+    for (KerberosTicket ticket : subject.getPrivateCredentials(KerberosTicket.class)) {
+      if (ticket.getEndTime() != null && (endTime == null || ticket.getEndTime().before(endTime))) {
+        endTime = ticket.getEndTime();
+      }
+    }
+    if (endTime == null) {
+      // nothing to rely on
+      invalidate(principal);
+      return;
+    }
+    authenticated(principal, password, endTime.getTime() - System.currentTimeMillis());
+  }
+
+  @VisibleForTesting
+  void authenticated(String principal, String password, long lifetimeMs) {
+    if (lifetimeMs <= 0) {
+      invalidate(principal);
+      return;
+    }
+    long expiresAt = ticker.read() + TimeUnit.MILLISECONDS.toNanos(lifetimeMs);
+    credentials.put(principal, new Credentials(LdapAuthenticationCache.Verifier.create(random, password), expiresAt));
+  }
+
+  public void invalidate(String principal) {
+    credentials.invalidate(principal);
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+      .add("maxTtl", maxTtlMs)
+      .add("maxSize", maxSize)
+      .toString();
+  }
+
+  private static final class Credentials {
+    private final LdapAuthenticationCache.Verifier verifier;
+    private final long expiresAt;
+
+    Credentials(LdapAuthenticationCache.Verifier verifier, long expiresAt) {
+      this.verifier = verifier;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+}
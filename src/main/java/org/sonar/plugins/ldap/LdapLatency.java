@@ -0,0 +1,88 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exponentially weighted moving average of response time of a single LDAP server.
+ * Estimate decays towards response time of other servers while server is not used, so that server, which was slow once,
+ * is eventually tried again, while server, which is not used, does not look faster than others.
+ */
+class LdapLatency {
+
+  /**
+   * Weight of the latest measurement.
+   */
+  private static final double ALPHA = 0.2;
+
+  private final long decayNanos;
+  private final Ticker ticker;
+
+  private double average;
+  private long lastUpdate;
+  private boolean measured = false;
+
+  /**
+   * @param decayMs time, after which difference between estimate of unused server and mean decreases by a factor of e
+   */
+  LdapLatency(long decayMs, Ticker ticker) {
+    this.decayNanos = TimeUnit.MILLISECONDS.toNanos(decayMs);
+    this.ticker = ticker;
+  }
+
+  /**
+   * @param elapsedNanos time to the first response of server
+   */
+  public synchronized void record(long elapsedNanos) {
+    long now = ticker.read();
+    // old average is worth less, when it was not updated for a long time
+    average = measured ? ALPHA * elapsedNanos + (1 - ALPHA) * decayed(now, elapsedNanos) : elapsedNanos;
+    lastUpdate = now;
+    measured = true;
+  }
+
+  /**
+   * @return average response time in nanoseconds, or NaN for server, which wasn't used yet
+   */
+  public synchronized double getAverage() {
+    return measured ? average : Double.NaN;
+  }
+
+  /**
+   * @param mean response time of other servers in nanoseconds
+   * @return estimated response time in nanoseconds, mean for server, which wasn't used yet
+   */
+  public synchronized double getEstimate(double mean) {
+    return measured ? decayed(ticker.read(), mean) : mean;
+  }
+
+  private double decayed(long now, double mean) {
+    return mean + (average - mean) * Math.exp(-(double) (now - lastUpdate) / decayNanos);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return measured ? (TimeUnit.NANOSECONDS.toMillis((long) average) + "ms") : "unknown";
+  }
+
+}
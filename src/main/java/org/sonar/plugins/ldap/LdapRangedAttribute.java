@@ -0,0 +1,183 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import javax.annotation.Nullable;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Values of multi-valued attribute, which might be returned in ranges.
+ * Active Directory returns at most MaxValRange values (1500 by default) of an attribute in a single response,
+ * using attribute description with option like {@code member;range=0-1499}, so that remaining values
+ * must be requested by DN with {@code member;range=1500-*}, and so on until range ending with {@code *}.
+ * Ranges are requested lazily one at a time, so that values of very large groups are never held all at once.
+ */
+final class LdapRangedAttribute {
+
+  private static final Pattern RANGE = Pattern.compile(";range=(\\d+)-(\\d+|\\*)$", Pattern.CASE_INSENSITIVE);
+  private static final String LAST = "*";
+
+  private LdapRangedAttribute() {
+  }
+
+  /**
+   * @return true if not all values of specified attribute were returned in entry, so that {@link #getAll} would issue requests
+   */
+  static boolean hasMoreValues(Attributes attributes, String attributeId) {
+    Attribute attribute = find(attributes, attributeId);
+    return attribute != null && nextStart(attribute.getID()) >= 0;
+  }
+
+  /**
+   * Values of attribute returned in entry are enumerated first, followed by values of subsequent ranges.
+   * Each range is requested when values of previous one are exhausted.
+   *
+   * @param dn DN of entry, which was returned with specified attributes
+   * @return values of specified attribute, or empty enumeration if entry doesn't have it
+   */
+  static NamingEnumeration<Object> getAll(LdapContextFactory contextFactory, String dn, Attributes attributes, String attributeId) throws NamingException {
+    return new Values(contextFactory, dn, attributeId, find(attributes, attributeId));
+  }
+
+  /**
+   * @return attribute with specified description, or with description of its first range
+   */
+  @Nullable
+  private static Attribute find(Attributes attributes, String attributeId) {
+    Attribute attribute = attributes.get(attributeId);
+    if (attribute != null) {
+      return attribute;
+    }
+    String prefix = attributeId.toLowerCase(Locale.ENGLISH) + ";range=";
+    NamingEnumeration<? extends Attribute> all = attributes.getAll();
+    while (all.hasMoreElements()) {
+      Attribute candidate = all.nextElement();
+      if (candidate.getID().toLowerCase(Locale.ENGLISH).startsWith(prefix)) {
+        return candidate;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return start of next range, or -1 if specified attribute description is not a range or last range
+   */
+  private static long nextStart(String attributeId) {
+    Matcher matcher = RANGE.matcher(attributeId);
+    if (!matcher.find() || LAST.equals(matcher.group(2))) {
+      return -1;
+    }
+    return Long.parseLong(matcher.group(2)) + 1;
+  }
+
+  private static final class Values implements NamingEnumeration<Object> {
+    private final LdapContextFactory contextFactory;
+    private final String dn;
+    private final String attributeId;
+    private NamingEnumeration<?> current;
+    private long nextStart;
+
+    Values(LdapContextFactory contextFactory, String dn, String attributeId, @Nullable Attribute attribute) throws NamingException {
+      this.contextFactory = contextFactory;
+      this.dn = dn;
+      this.attributeId = attributeId;
+      setRange(attribute);
+    }
+
+    private void setRange(@Nullable Attribute attribute) throws NamingException {
+      if (attribute == null) {
+        current = null;
+        nextStart = -1;
+      } else {
+        current = attribute.getAll();
+        nextStart = nextStart(attribute.getID());
+      }
+    }
+
+    public boolean hasMore() throws NamingException {
+      while (current != null && !current.hasMore()) {
+        if (nextStart < 0) {
+          current = null;
+        } else {
+          requestNextRange();
+        }
+      }
+      return current != null;
+    }
+
+    private void requestNextRange() throws NamingException {
+      String range = attributeId + ";range=" + nextStart + "-" + LAST;
+      SearchResult entry = new LdapSearch(contextFactory)
+        .setBaseDn(dn)
+        .setScope(SearchControls.OBJECT_SCOPE)
+        .setRequest("(objectClass=*)")
+        .setParameters()
+        .returns(range)
+        .findUnique();
+      Attribute attribute = entry == null ? null : find(entry.getAttributes(), attributeId);
+      if (attribute != null && nextStart(attribute.getID()) == nextStart) {
+        // server must move forward, otherwise it would loop forever
+        throw new NamingException("Unexpected range " + attribute.getID() + " of " + dn + " in response to " + range);
+      }
+      setRange(attribute);
+    }
+
+    public Object next() throws NamingException {
+      if (!hasMore()) {
+        throw new NoSuchElementException();
+      }
+      return current.next();
+    }
+
+    public boolean hasMoreElements() {
+      try {
+        return hasMore();
+      } catch (NamingException e) {
+        return false;
+      }
+    }
+
+    public Object nextElement() {
+      try {
+        return next();
+      } catch (NamingException e) {
+        NoSuchElementException exception = new NoSuchElementException(e.getMessage());
+        exception.initCause(e);
+        throw exception;
+      }
+    }
+
+    public void close() {
+      current = null;
+      nextStart = -1;
+    }
+  }
+
+}
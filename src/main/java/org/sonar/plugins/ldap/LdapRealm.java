@@ -19,11 +19,15 @@
  */
 package org.sonar.plugins.ldap;
 
+import com.google.common.collect.Lists;
 import org.sonar.api.security.ExternalGroupsProvider;
 import org.sonar.api.security.ExternalUsersProvider;
 import org.sonar.api.security.LoginPasswordAuthenticator;
 import org.sonar.api.security.SecurityRealm;
 
+import javax.annotation.Nullable;
+
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -34,6 +38,7 @@ public class LdapRealm extends SecurityRealm {
   private LdapUsersProvider usersProvider;
   private LdapGroupsProvider groupsProvider;
   private LdapAuthenticator authenticator;
+  private LdapChangePoller changePoller;
   private final LdapSettingsManager settingsManager;
 
   public LdapRealm(LdapSettingsManager settingsManager) {
@@ -55,17 +60,53 @@ public class LdapRealm extends SecurityRealm {
 
     Map<String, LdapContextFactory> contextFactories = settingsManager.getContextFactories();
     Map<String, LdapUserMapping> userMappings = settingsManager.getUserMappings();
-    usersProvider = new LdapUsersProvider(contextFactories, userMappings);
-    authenticator = new LdapAuthenticator(contextFactories, userMappings);
+    LdapUserCache userCache = settingsManager.getUserCache();
+    List<LdapChangeListener> changeListeners = Lists.<LdapChangeListener>newArrayList(userCache);
+    usersProvider = new LdapUsersProvider(contextFactories, userMappings, userCache);
+    LdapAuthenticationCache authenticationCache = settingsManager.createAuthenticationCache();
+    addChangeListener(changeListeners, authenticationCache);
+    authenticator = new LdapAuthenticator(contextFactories, userMappings, authenticationCache, userCache,
+      settingsManager.createAuthenticationExecutor(), settingsManager.getAuthenticationTimeout(), settingsManager.createKerberosCache());
     Map<String, LdapGroupMapping> groupMappings = settingsManager.getGroupMappings();
     if (!groupMappings.isEmpty()) {
-      groupsProvider = new LdapGroupsProvider(contextFactories, userMappings, groupMappings);
+      LdapGroupMembershipCache membershipCache = settingsManager.createGroupMembershipCache();
+      LdapGroupGraph groupGraph = settingsManager.createGroupGraph();
+      LdapGroupSnapshot snapshot = settingsManager.createGroupSnapshot();
+      LdapSidCache sidCache = settingsManager.createSidCache();
+      addChangeListener(changeListeners, membershipCache);
+      addChangeListener(changeListeners, groupGraph);
+      addChangeListener(changeListeners, snapshot);
+      addChangeListener(changeListeners, sidCache);
+      groupsProvider = new LdapGroupsProvider(contextFactories, userMappings, groupMappings, userCache, membershipCache,
+        settingsManager.createGroupSearchExecutor(), settingsManager.getGroupSearchTimeout(), groupGraph, snapshot, sidCache);
     }
+    changePoller = settingsManager.createChangePoller(changeListeners);
     for (LdapContextFactory contextFactory : contextFactories.values()) {
       contextFactory.testConnection();
     }
   }
 
+  private static void addChangeListener(List<LdapChangeListener> changeListeners, @Nullable LdapChangeListener listener) {
+    if (listener != null) {
+      changeListeners.add(listener);
+    }
+  }
+
+  /**
+   * Stops background tasks started by {@link #init()}.
+   */
+  public void stop() {
+    if (changePoller != null) {
+      changePoller.close();
+    }
+    if (authenticator != null) {
+      authenticator.close();
+    }
+    if (groupsProvider != null) {
+      groupsProvider.close();
+    }
+  }
+
   @Override
   public LoginPasswordAuthenticator getLoginPasswordAuthenticator() {
     return authenticator;
@@ -20,15 +20,24 @@
 package org.sonar.plugins.ldap;
 
 import com.google.common.base.Objects;
+import com.google.common.base.Ticker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.InitialDirContext;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.NoSuchElementException;
 
 /**
  * Fluent API for building LDAP queries.
@@ -44,8 +53,10 @@ public class LdapSearch {
   private String baseDn;
   private int scope = SearchControls.SUBTREE_SCOPE;
   private String request;
+  private LdapFilterTemplate template;
   private String[] parameters;
   private String[] returningAttributes;
+  private LdapDeadline deadline = LdapDeadline.unlimited();
 
   public LdapSearch(LdapContextFactory contextFactory) {
     this.contextFactory = contextFactory;
@@ -84,6 +95,16 @@ public class LdapSearch {
    */
   public LdapSearch setRequest(String request) {
     this.request = request;
+    this.template = null;
+    return this;
+  }
+
+  /**
+   * Sets request compiled in advance, so that parameters are bound without parsing it.
+   */
+  public LdapSearch setRequest(LdapFilterTemplate template) {
+    this.request = template.getRequest();
+    this.template = template;
     return this;
   }
 
@@ -116,40 +137,131 @@ public class LdapSearch {
   }
 
   /**
+   * Sets time budget of operation, which performs search. Connection is closed, if results are not read until deadline.
+   */
+  LdapSearch setDeadline(LdapDeadline deadline) {
+    this.deadline = deadline;
+    return this;
+  }
+
+  /**
+   * Results are read lazily from a pooled connection, which is held until the returned enumeration is exhausted,
+   * fails or gets closed, so caller must either iterate through all results or close enumeration.
+   *
    * @throws NamingException if unable to perform search
    */
   public NamingEnumeration<SearchResult> find() throws NamingException {
     LOG.debug("Search: {}", this);
-    NamingEnumeration<SearchResult> result;
-    InitialDirContext context = null;
-    boolean threw = false;
+    InitialDirContext context = contextFactory.borrowBindContext(deadline);
+    LdapDeadline.Watch watch = deadline.watch(context);
+    int pageSize = contextFactory.getPageSize();
+    boolean threw = true;
     try {
-      context = contextFactory.createBindContext();
       SearchControls controls = new SearchControls();
       controls.setSearchScope(scope);
       controls.setReturningAttributes(returningAttributes);
-      result = context.search(baseDn, request, parameters, controls);
-      threw = true;
+      // server should not keep working on search after client gave up waiting
+      controls.setTimeLimit((int) Math.min(deadline.cap(contextFactory.getReadTimeout()), Integer.MAX_VALUE));
+      if (pageSize > 0) {
+        setPageControl(context, pageSize, null);
+      }
+      NamingEnumeration<SearchResult> result = new PooledEnumeration(this, context, watch, controls, pageSize, search(context, controls));
+      threw = false;
+      return result;
+    } catch (NamingException e) {
+      release(context, watch, pageSize, isBroken(e));
+      threw = false;
+      throw e;
     } finally {
-      ContextHelper.close(context, threw);
+      if (threw) {
+        release(context, watch, pageSize, true);
+      }
     }
+  }
+
+  private NamingEnumeration<SearchResult> search(InitialDirContext context, SearchControls controls) throws NamingException {
+    long start = Ticker.systemTicker().read();
+    NamingEnumeration<SearchResult> result;
+    if (template == null) {
+      result = context.search(baseDn, request, parameters, controls);
+    } else {
+      // values are already escaped, so filter is passed as is
+      result = context.search(baseDn, template.bind(parameters == null ? new String[0] : parameters), controls);
+    }
+    // search returns after first response of server, rest of results is read later by caller
+    contextFactory.recordResponseTime(context, Ticker.systemTicker().read() - start);
     return result;
   }
 
+  /**
+   * Requests next page of results (RFC 2696). Control is non-critical, so servers without support of paging return all results at once.
+   */
+  static void setPageControl(InitialDirContext context, int pageSize, @Nullable byte[] cookie) throws NamingException {
+    try {
+      ((LdapContext) context).setRequestControls(new Control[] {new PagedResultsControl(pageSize, cookie, Control.NONCRITICAL)});
+    } catch (IOException e) {
+      NamingException exception = new NamingException("Unable to create paged results control: " + e.getMessage());
+      exception.setRootCause(e);
+      throw exception;
+    }
+  }
+
+  /**
+   * @return cookie to request next page, or null if last page was received
+   */
+  @Nullable
+  static byte[] getPageCookie(InitialDirContext context) throws NamingException {
+    Control[] controls = ((LdapContext) context).getResponseControls();
+    if (controls != null) {
+      for (Control control : controls) {
+        if (control instanceof PagedResultsResponseControl) {
+          byte[] cookie = ((PagedResultsResponseControl) control).getCookie();
+          return cookie == null || cookie.length == 0 ? null : cookie;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Gives context back to the pool. Controls of paged search are removed, so that they don't affect subsequent requests.
+   */
+  private void release(InitialDirContext context, LdapDeadline.Watch watch, int pageSize, boolean broken) {
+    watch.cancel();
+    boolean reset = broken;
+    if (!broken && pageSize > 0) {
+      try {
+        ((LdapContext) context).setRequestControls(null);
+      } catch (NamingException e) {
+        LOG.debug("Unable to reset request controls", e);
+        reset = true;
+      }
+    }
+    contextFactory.releaseBindContext(context, reset, deadline);
+  }
+
   /**
    * @return result, or null if not found
    * @throws NamingException if unable to perform search, or non unique result
    */
   public SearchResult findUnique() throws NamingException {
     NamingEnumeration<SearchResult> result = find();
-    if (result.hasMore()) {
-      SearchResult obj = result.next();
-      if (!result.hasMore()) {
-        return obj;
+    try {
+      if (result.hasMore()) {
+        SearchResult obj = result.next();
+        if (!result.hasMore()) {
+          return obj;
+        }
+        throw new NamingException("Non unique result for " + toString());
       }
-      throw new NamingException("Non unique result for " + toString());
+      return null;
+    } finally {
+      result.close();
     }
-    return null;
+  }
+
+  private static boolean isBroken(NamingException e) {
+    return LdapContextFactory.isCommunicationFailure(e);
   }
 
   @Override
@@ -175,4 +287,94 @@ public class LdapSearch {
     }
   }
 
+  /**
+   * Gives connection back to the pool as soon as there are no more results.
+   * When search is paged, next page is requested on the same connection after current one is read.
+   */
+  private static final class PooledEnumeration implements NamingEnumeration<SearchResult> {
+    private final LdapSearch search;
+    private final LdapDeadline.Watch watch;
+    private final SearchControls controls;
+    private final int pageSize;
+    private NamingEnumeration<SearchResult> delegate;
+    private InitialDirContext context;
+
+    PooledEnumeration(LdapSearch search, InitialDirContext context, LdapDeadline.Watch watch, SearchControls controls, int pageSize,
+      NamingEnumeration<SearchResult> delegate) {
+      this.search = search;
+      this.context = context;
+      this.watch = watch;
+      this.controls = controls;
+      this.pageSize = pageSize;
+      this.delegate = delegate;
+    }
+
+    public boolean hasMore() throws NamingException {
+      if (context == null) {
+        return false;
+      }
+      try {
+        while (!delegate.hasMore()) {
+          byte[] cookie = pageSize > 0 ? getPageCookie(context) : null;
+          if (cookie == null) {
+            release(false);
+            return false;
+          }
+          delegate.close();
+          setPageControl(context, pageSize, cookie);
+          delegate = search.search(context, controls);
+        }
+        return true;
+      } catch (NamingException e) {
+        release(isBroken(e));
+        throw e;
+      }
+    }
+
+    public SearchResult next() throws NamingException {
+      try {
+        return delegate.next();
+      } catch (NamingException e) {
+        release(isBroken(e));
+        throw e;
+      }
+    }
+
+    public boolean hasMoreElements() {
+      try {
+        return hasMore();
+      } catch (NamingException e) {
+        LOG.debug("Unable to read next search result", e);
+        return false;
+      }
+    }
+
+    public SearchResult nextElement() {
+      try {
+        return next();
+      } catch (NamingException e) {
+        NoSuchElementException exception = new NoSuchElementException(e.getMessage());
+        exception.initCause(e);
+        throw exception;
+      }
+    }
+
+    public void close() {
+      release(false);
+    }
+
+    private void release(boolean broken) {
+      if (context != null) {
+        try {
+          delegate.close();
+        } catch (NamingException e) {
+          LOG.debug("Unable to close search results", e);
+          broken = true;
+        }
+        search.release(context, watch, pageSize, broken);
+        context = null;
+      }
+    }
+  }
+
 }
@@ -0,0 +1,119 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.base.Objects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+
+/**
+ * Circuit breaker for a single LDAP server.
+ * Server is considered down after a number of consecutive communication failures, and stays down until a probe succeeds.
+ * After successful probe, first request decides whether server is up again, or still down.
+ */
+class LdapServerHealth {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LdapServerHealth.class);
+
+  enum State {
+    /**
+     * Server is up.
+     */
+    CLOSED,
+    /**
+     * Server is down, requests are not sent to it.
+     */
+    OPEN,
+    /**
+     * Probe succeeded, but server still might be down.
+     */
+    HALF_OPEN
+  }
+
+  private final String name;
+  private final int failureThreshold;
+  private final Runnable onOpen;
+
+  private State state = State.CLOSED;
+  private int failures = 0;
+
+  /**
+   * @param failureThreshold number of consecutive failures, after which server is considered down, never if not positive
+   * @param onOpen invoked when server becomes down, or null
+   */
+  LdapServerHealth(String name, int failureThreshold, @Nullable Runnable onOpen) {
+    this.name = name;
+    this.failureThreshold = failureThreshold;
+    this.onOpen = onOpen;
+  }
+
+  /**
+   * @return false if server is known to be down
+   */
+  public synchronized boolean isAvailable() {
+    return state != State.OPEN;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * Records that server responded.
+   */
+  public void success() {
+    synchronized (this) {
+      failures = 0;
+      if (state == State.CLOSED) {
+        return;
+      }
+      state = state == State.OPEN ? State.HALF_OPEN : State.CLOSED;
+    }
+    LOG.info("LDAP server {} is available again", name);
+  }
+
+  /**
+   * Records that server didn't respond.
+   */
+  public void failure() {
+    synchronized (this) {
+      failures++;
+      if (failureThreshold <= 0 || state == State.OPEN || (state == State.CLOSED && failures < failureThreshold)) {
+        return;
+      }
+      state = State.OPEN;
+    }
+    LOG.warn("LDAP server {} is not available, requests will be sent to other servers", name);
+    if (onOpen != null) {
+      onOpen.run();
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return Objects.toStringHelper(this)
+      .add("failureThreshold", failureThreshold)
+      .add("state", state)
+      .toString();
+  }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.collect.Lists;
+import org.sonar.plugins.ldap.LdapContextFactory.Endpoint;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Defines order, in which servers of a single directory are tried.
+ * Servers, which are up, always go before servers, which are down, and servers with lower SRV priority go first.
+ * Order of servers with the same priority depends on strategy:
+ * <ul>
+ * <li>{@code latency} - by estimated response time, where server, which is not used, tends towards the mean of servers,
+ * and servers with estimates close to the fastest one are in random order, so that load is not concentrated on a single server</li>
+ * <li>{@code weighted} - random for each request, proportionally to SRV weights, as defined by RFC 2782</li>
+ * </ul>
+ */
+abstract class LdapServerSelector {
+
+  static final String LATENCY = "latency";
+  static final String WEIGHTED = "weighted";
+
+  /**
+   * @throws IllegalArgumentException if strategy is unknown
+   */
+  static LdapServerSelector create(String strategy) {
+    if (LATENCY.equals(strategy)) {
+      return new LatencySelector(new Random());
+    } else if (WEIGHTED.equals(strategy)) {
+      return new WeightedSelector(new Random());
+    }
+    throw new IllegalArgumentException("Unknown strategy '" + strategy + "', expected '" + LATENCY + "' or '" + WEIGHTED + "'");
+  }
+
+  /**
+   * @return new list with specified servers in order, in which they should be tried
+   */
+  public List<Endpoint> order(List<Endpoint> endpoints) {
+    if (endpoints.size() < 2) {
+      return Lists.newArrayList(endpoints);
+    }
+    // state of servers is captured before sorting, because it might change concurrently
+    List<Candidate> candidates = Lists.newArrayListWithCapacity(endpoints.size());
+    for (Endpoint endpoint : endpoints) {
+      candidates.add(new Candidate(endpoint));
+    }
+    // stable, so order of SRV records is preserved for servers, which are equal for strategy
+    Collections.sort(candidates, CandidateComparator.INSTANCE);
+    List<Endpoint> result = Lists.newArrayListWithCapacity(candidates.size());
+    int from = 0;
+    for (int i = 1; i <= candidates.size(); i++) {
+      if (i == candidates.size() || CandidateComparator.INSTANCE.compare(candidates.get(from), candidates.get(i)) != 0) {
+        orderLevel(candidates.subList(from, i), result);
+        from = i;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Appends servers with the same availability and priority to result.
+   */
+  abstract void orderLevel(List<Candidate> level, List<Endpoint> result);
+
+  static final class LatencySelector extends LdapServerSelector {
+    /**
+     * Servers with estimate at most this fraction above the fastest one are considered as fast, as they differ mostly by noise.
+     */
+    private static final double TOLERANCE = 0.25;
+
+    private final Random random;
+
+    LatencySelector(Random random) {
+      this.random = random;
+    }
+
+    @Override
+    void orderLevel(List<Candidate> level, List<Endpoint> result) {
+      double sum = 0;
+      int measured = 0;
+      for (Candidate candidate : level) {
+        if (!Double.isNaN(candidate.average)) {
+          sum += candidate.average;
+          measured++;
+        }
+      }
+      double mean = measured == 0 ? 0 : sum / measured;
+      List<Candidate> sorted = Lists.newArrayList(level);
+      for (Candidate candidate : sorted) {
+        candidate.latency = candidate.endpoint.getLatency(mean);
+      }
+      Collections.sort(sorted, new Comparator<Candidate>() {
+        public int compare(Candidate o1, Candidate o2) {
+          return Double.compare(o1.latency, o2.latency);
+        }
+      });
+      int fast = 1;
+      while (fast < sorted.size() && sorted.get(fast).latency <= sorted.get(0).latency * (1 + TOLERANCE)) {
+        fast++;
+      }
+      synchronized (random) {
+        Collections.shuffle(sorted.subList(0, fast), random);
+      }
+      for (Candidate candidate : sorted) {
+        result.add(candidate.endpoint);
+      }
+    }
+  }
+
+  /**
+   * Selection algorithm from RFC 2782: server is picked with probability proportional to its weight,
+   * removed from the list, and selection is repeated for remaining servers.
+   */
+  static final class WeightedSelector extends LdapServerSelector {
+    private final Random random;
+
+    WeightedSelector(Random random) {
+      this.random = random;
+    }
+
+    @Override
+    void orderLevel(List<Candidate> level, List<Endpoint> result) {
+      List<Candidate> remaining = Lists.newLinkedList();
+      int totalWeight = 0;
+      for (Candidate candidate : level) {
+        int weight = candidate.endpoint.getWeight();
+        // servers with zero weight go first, so that they have very small chance to be selected
+        if (weight == 0) {
+          remaining.add(0, candidate);
+        } else {
+          remaining.add(candidate);
+        }
+        totalWeight += weight;
+      }
+      while (!remaining.isEmpty()) {
+        int threshold;
+        synchronized (random) {
+          threshold = random.nextInt(totalWeight + 1);
+        }
+        int runningSum = 0;
+        Iterator<Candidate> iterator = remaining.iterator();
+        while (iterator.hasNext()) {
+          Candidate candidate = iterator.next();
+          runningSum += candidate.endpoint.getWeight();
+          if (runningSum >= threshold || !iterator.hasNext()) {
+            iterator.remove();
+            totalWeight -= candidate.endpoint.getWeight();
+            result.add(candidate.endpoint);
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  static final class Candidate {
+    private final Endpoint endpoint;
+    private final boolean available;
+    private final double average;
+    private double latency;
+
+    Candidate(Endpoint endpoint) {
+      this.endpoint = endpoint;
+      this.available = endpoint.isAvailable();
+      this.average = endpoint.getAverageLatency();
+    }
+  }
+
+  private static final class CandidateComparator implements Comparator<Candidate> {
+    private static final CandidateComparator INSTANCE = new CandidateComparator();
+
+    public int compare(Candidate o1, Candidate o2) {
+      if (o1.available != o2.available) {
+        return o1.available ? -1 : 1;
+      }
+      if (o1.endpoint.getPriority() != o2.endpoint.getPriority()) {
+        return o1.endpoint.getPriority() < o2.endpoint.getPriority() ? -1 : 1;
+      }
+      return 0;
+    }
+  }
+
+}
@@ -19,7 +19,9 @@
  */
 package org.sonar.plugins.ldap;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonar.api.ServerExtension;
@@ -27,9 +29,19 @@ import org.sonar.api.config.Settings;
 import org.sonar.api.utils.SonarException;
 import org.sonar.plugins.ldap.LdapAutodiscovery.LdapSrvRecord;
 
+import javax.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The LdapSettingsManager will parse the settings.
@@ -42,11 +54,27 @@ public class LdapSettingsManager implements ServerExtension {
   private static final String LDAP_SERVERS_PROPERTY = "ldap.servers";
   private static final String LDAP_PROPERTY_PREFIX = "ldap";
   private static final String DEFAULT_LDAP_SERVER_KEY = "<default>";
+  private static final String CACHE_PROPERTY_PREFIX = LDAP_PROPERTY_PREFIX + ".cache";
+  private static final int DEFAULT_CACHE_MAX_SIZE = 10000;
+  private static final long DEFAULT_USER_ENTRY_TTL = 5;
+  private static final long DEFAULT_KERBEROS_MAX_TTL = 36000;
+  private static final long DEFAULT_GROUP_GRAPH_TTL = 300;
+  private static final long DEFAULT_SID_CACHE_TTL = 3600;
+  private static final int DEFAULT_SID_CACHE_MAX_SIZE = 100000;
+  private static final int DEFAULT_THREADS = 10;
+  private static final int DEFAULT_QUEUE_SIZE = 100;
+  private static final long DEFAULT_GROUP_SEARCH_TIMEOUT = 10000;
+  private static final long DEFAULT_HEALTH_PROBE_INTERVAL = 10;
+  private static final long DEFAULT_AUTODISCOVERY_REFRESH_INTERVAL = 300;
+  private static final long DEFAULT_AUTHENTICATION_TIMEOUT = 30000;
   private final Settings settings;
   private final LdapAutodiscovery ldapAutodiscovery;
   private Map<String, LdapUserMapping> userMappings = null;
   private Map<String, LdapGroupMapping> groupMappings = null;
   private Map<String, LdapContextFactory> contextFactories;
+  private LdapUserCache userCache;
+  private LdapHealthProber healthProber;
+  private LdapAutodiscoveryRefresher autodiscoveryRefresher;
 
   /**
    * Create an instance of the settings manager.
@@ -131,11 +159,16 @@ public class LdapSettingsManager implements ServerExtension {
   /**
    * Get all the @link{LdapContextFactory}s available in the settings.
    *
+   * Servers, which are down, are probed every {@code ldap.health.probeInterval} seconds.
+   * Discovered servers are resolved again every {@code ldap.autodiscovery.refreshInterval} seconds (300 by default, 0 to disable).
+   *
    * @return A @link{Map} with all the @link{LdapContextFactory} objects.
    *        The key is the server key used in the settings (ldap for old single server notation).
    */
   public Map<String, LdapContextFactory> getContextFactories() {
     if (contextFactories == null) {
+      healthProber = new LdapHealthProber(TimeUnit.SECONDS.toMillis(
+        NumberUtils.toLong(settings.getString(LDAP_PROPERTY_PREFIX + ".health.probeInterval"), DEFAULT_HEALTH_PROBE_INTERVAL)));
       // Use linked hash map to preserve order
       contextFactories = new LinkedHashMap<String, LdapContextFactory>();
       String[] serverKeys = settings.getStringArray(LDAP_SERVERS_PROPERTY);
@@ -148,30 +181,324 @@ public class LdapSettingsManager implements ServerExtension {
     return contextFactories;
   }
 
+  /**
+   * Get the executor to search for users on all servers at once during authentication,
+   * enabled by property {@code ldap.authentication.parallel} when more than one server is configured.
+   * Number of threads is defined by property {@code ldap.authentication.threads}.
+   *
+   * @return A new bounded @link{ExecutorService}, or null if disabled.
+   */
+  @Nullable
+  public ExecutorService createAuthenticationExecutor() {
+    String prefix = LDAP_PROPERTY_PREFIX + ".authentication";
+    if (!settings.getBoolean(prefix + ".parallel") || getUserMappings().size() < 2) {
+      return null;
+    }
+    int threads = NumberUtils.toInt(settings.getString(prefix + ".threads"), DEFAULT_THREADS);
+    LOG.info("Parallel authentication on {} servers with {} threads", getUserMappings().size(), threads);
+    return createExecutor("ldap-authentication-%d", threads);
+  }
+
+  /**
+   * Get the time budget of authentication of a user on all servers, including search of user and verification of password,
+   * defined by property {@code ldap.authentication.timeout} (in milliseconds, 30000 by default, 0 for unlimited).
+   * Time of each request is additionally limited by properties {@code ldap.connectTimeout} and {@code ldap.readTimeout}.
+   */
+  public long getAuthenticationTimeout() {
+    return NumberUtils.toLong(settings.getString(LDAP_PROPERTY_PREFIX + ".authentication.timeout"), DEFAULT_AUTHENTICATION_TIMEOUT);
+  }
+
+  /**
+   * Get the executor to search for groups on all servers listed in {@code ldap.<server>.group.searchServers} at once,
+   * enabled by property {@code ldap.groups.parallel}.
+   * Number of threads is defined by property {@code ldap.groups.threads}.
+   *
+   * @return A new bounded @link{ExecutorService}, or null if disabled.
+   */
+  @Nullable
+  public ExecutorService createGroupSearchExecutor() {
+    String prefix = LDAP_PROPERTY_PREFIX + ".groups";
+    if (!settings.getBoolean(prefix + ".parallel")) {
+      return null;
+    }
+    int threads = NumberUtils.toInt(settings.getString(prefix + ".threads"), DEFAULT_THREADS);
+    LOG.info("Parallel search of groups with {} threads and timeout of {}ms", threads, getGroupSearchTimeout());
+    return createExecutor("ldap-groups-%d", threads);
+  }
+
+  /**
+   * Get the in-memory copy of groups, which is reloaded every {@code ldap.groups.snapshot.refreshInterval} (in seconds)
+   * in background, so that groups of users are found without requests to LDAP. Started by this method.
+   *
+   * @return A new started @link{LdapGroupSnapshot}, or null if disabled.
+   */
+  @Nullable
+  public LdapGroupSnapshot createGroupSnapshot() {
+    long interval = NumberUtils.toLong(settings.getString(LDAP_PROPERTY_PREFIX + ".groups.snapshot.refreshInterval"), 0);
+    if (interval <= 0 || getGroupMappings().isEmpty()) {
+      return null;
+    }
+    LOG.info("Snapshot of groups refreshed every {}s", interval);
+    LdapGroupSnapshot snapshot = new LdapGroupSnapshot(getContextFactories(), getGroupMappings(), TimeUnit.SECONDS.toMillis(interval));
+    snapshot.start();
+    return snapshot;
+  }
+
+  /**
+   * Get the poller of modified users and groups, which runs every {@code ldap.changes.pollInterval} (in seconds)
+   * in background, so that cached entries are evicted or updated soon after modification. Started by this method.
+   *
+   * @param listeners caches to notify about modified entries
+   * @return A new started @link{LdapChangePoller}, or null if disabled.
+   */
+  @Nullable
+  public LdapChangePoller createChangePoller(List<LdapChangeListener> listeners) {
+    long interval = NumberUtils.toLong(settings.getString(LDAP_PROPERTY_PREFIX + ".changes.pollInterval"), 0);
+    if (interval <= 0 || listeners.isEmpty()) {
+      return null;
+    }
+    LOG.info("Changes polled every {}s", interval);
+    LdapChangePoller poller = new LdapChangePoller(getContextFactories(), getUserMappings(), getGroupMappings(), listeners,
+      TimeUnit.SECONDS.toMillis(interval));
+    poller.start();
+    return poller;
+  }
+
+  /**
+   * Get the time to wait for groups from all servers, when searching in parallel,
+   * defined by property {@code ldap.groups.timeout} (in milliseconds).
+   */
+  public long getGroupSearchTimeout() {
+    return NumberUtils.toLong(settings.getString(LDAP_PROPERTY_PREFIX + ".groups.timeout"), DEFAULT_GROUP_SEARCH_TIMEOUT);
+  }
+
+  private static ExecutorService createExecutor(String nameFormat, int threads) {
+    // when all threads are busy and queue is full, task is performed by the thread which submits it
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<Runnable>(DEFAULT_QUEUE_SIZE),
+      new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build(),
+      new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  /**
+   * Get the cache of successful authentications, enabled by property {@code ldap.cache.authentication.ttl} (in seconds).
+   *
+   * @return A new @link{LdapAuthenticationCache}, or null if disabled.
+   */
+  @Nullable
+  public LdapAuthenticationCache createAuthenticationCache() {
+    String prefix = CACHE_PROPERTY_PREFIX + ".authentication";
+    long ttl = NumberUtils.toLong(settings.getString(prefix + ".ttl"), 0);
+    if (ttl <= 0) {
+      return null;
+    }
+    LdapAuthenticationCache cache = new LdapAuthenticationCache(TimeUnit.SECONDS.toMillis(ttl),
+      NumberUtils.toInt(settings.getString(prefix + ".maxSize"), DEFAULT_CACHE_MAX_SIZE));
+    LOG.info("Authentication cache: {}", cache);
+    return cache;
+  }
+
+  /**
+   * Get the cache of principals verified by Kerberos, used when at least one server authenticates with GSSAPI.
+   * Principals are remembered until expiration of their tickets, but not longer than
+   * {@code ldap.cache.kerberos.ttl} (in seconds, 36000 by default, 0 to disable).
+   *
+   * @return A new @link{LdapKerberosCache}, or null if disabled.
+   */
+  @Nullable
+  public LdapKerberosCache createKerberosCache() {
+    String prefix = CACHE_PROPERTY_PREFIX + ".kerberos";
+    long ttl = NumberUtils.toLong(settings.getString(prefix + ".ttl"), DEFAULT_KERBEROS_MAX_TTL);
+    if (ttl <= 0 || !isGssapiUsed()) {
+      return null;
+    }
+    LdapKerberosCache cache = new LdapKerberosCache(TimeUnit.SECONDS.toMillis(ttl),
+      NumberUtils.toInt(settings.getString(prefix + ".maxSize"), DEFAULT_CACHE_MAX_SIZE));
+    LOG.info("Kerberos cache: {}", cache);
+    return cache;
+  }
+
+  private boolean isGssapiUsed() {
+    for (LdapContextFactory contextFactory : getContextFactories().values()) {
+      if (contextFactory.isGssapi()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get the cache of groups of users, enabled by property {@code ldap.cache.groups.ttl} (in seconds).
+   * Entries older than TTL minus {@code ldap.cache.groups.refreshAhead} (in seconds) are refreshed in background.
+   *
+   * @return A new @link{LdapGroupMembershipCache}, or null if disabled.
+   */
+  @Nullable
+  public LdapGroupMembershipCache createGroupMembershipCache() {
+    String prefix = CACHE_PROPERTY_PREFIX + ".groups";
+    long ttl = NumberUtils.toLong(settings.getString(prefix + ".ttl"), 0);
+    if (ttl <= 0) {
+      return null;
+    }
+    long refreshAhead = Math.min(NumberUtils.toLong(settings.getString(prefix + ".refreshAhead"), ttl / 4), ttl);
+    LdapGroupMembershipCache cache = new LdapGroupMembershipCache(TimeUnit.SECONDS.toMillis(ttl), TimeUnit.SECONDS.toMillis(refreshAhead),
+      NumberUtils.toInt(settings.getString(prefix + ".maxSize"), DEFAULT_CACHE_MAX_SIZE));
+    LOG.info("Group membership cache: {}", cache);
+    return cache;
+  }
+
+  /**
+   * Get the parents of groups shared by all users, used by group mappings with {@code ldap.group.nested} enabled,
+   * and entries of groups looked up by DN for group mappings with {@code ldap.group.strategy} set to {@code memberOf}.
+   * Both are kept for {@code ldap.cache.nestedGroups.ttl} (in seconds, 300 by default, 0 to search them for every user).
+   *
+   * @return A new @link{LdapGroupGraph}.
+   */
+  public LdapGroupGraph createGroupGraph() {
+    String prefix = CACHE_PROPERTY_PREFIX + ".nestedGroups";
+    long ttl = NumberUtils.toLong(settings.getString(prefix + ".ttl"), DEFAULT_GROUP_GRAPH_TTL);
+    if (ttl <= 0 || !isGroupGraphUsed()) {
+      return LdapGroupGraph.disabled();
+    }
+    LdapGroupGraph graph = new LdapGroupGraph(TimeUnit.SECONDS.toMillis(ttl),
+      NumberUtils.toInt(settings.getString(prefix + ".maxSize"), DEFAULT_CACHE_MAX_SIZE));
+    LOG.info("Nested groups cache: {}", graph);
+    return graph;
+  }
+
+  /**
+   * Get the IDs of groups by SIDs shared by all users, used by group mappings with {@code ldap.group.strategy} set to {@code tokenGroups}.
+   * IDs are kept for {@code ldap.cache.groupSids.ttl} (in seconds, 3600 by default, 0 to search them for every user).
+   *
+   * @return A new @link{LdapSidCache}.
+   */
+  public LdapSidCache createSidCache() {
+    String prefix = CACHE_PROPERTY_PREFIX + ".groupSids";
+    long ttl = NumberUtils.toLong(settings.getString(prefix + ".ttl"), DEFAULT_SID_CACHE_TTL);
+    if (ttl <= 0 || !isStrategyUsed(LdapGroupMapping.Strategy.TOKEN_GROUPS)) {
+      return LdapSidCache.disabled();
+    }
+    LdapSidCache cache = new LdapSidCache(TimeUnit.SECONDS.toMillis(ttl),
+      NumberUtils.toInt(settings.getString(prefix + ".maxSize"), DEFAULT_SID_CACHE_MAX_SIZE));
+    LOG.info("Group SIDs cache: {}", cache);
+    return cache;
+  }
+
+  private boolean isStrategyUsed(LdapGroupMapping.Strategy strategy) {
+    for (LdapGroupMapping groupMapping : getGroupMappings().values()) {
+      if (groupMapping.getStrategy() == strategy) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean isGroupGraphUsed() {
+    for (LdapGroupMapping groupMapping : getGroupMappings().values()) {
+      if (groupMapping.isNested()) {
+        return true;
+      }
+    }
+    return isStrategyUsed(LdapGroupMapping.Strategy.MEMBER_OF);
+  }
+
+  /**
+   * Get the cache of users shared by authenticator, users and groups providers.
+   * DNs are cached if enabled by property {@code ldap.cache.user.ttl} (in seconds).
+   * Entries with attributes required by users and groups providers are kept
+   * for {@code ldap.cache.user.entryTtl} (in seconds, 5 by default), which is enough for a single login.
+   *
+   * @return The @link{LdapUserCache}, which is disabled if not configured.
+   */
+  public LdapUserCache getUserCache() {
+    if (userCache == null) {
+      String prefix = CACHE_PROPERTY_PREFIX + ".user";
+      userCache = new LdapUserCache(TimeUnit.SECONDS.toMillis(NumberUtils.toLong(settings.getString(prefix + ".ttl"), 0)),
+        TimeUnit.SECONDS.toMillis(NumberUtils.toLong(settings.getString(prefix + ".entryTtl"), DEFAULT_USER_ENTRY_TTL)),
+        NumberUtils.toInt(settings.getString(prefix + ".maxSize"), DEFAULT_CACHE_MAX_SIZE),
+        getUserEntryAttributes());
+      if (userCache.isEnabled()) {
+        LOG.info("User cache: {}", userCache);
+      }
+    }
+    return userCache;
+  }
+
+  /**
+   * @return for every server, union of user attributes required by users provider and by group mappings searching for groups of its users
+   */
+  private Map<String, String[]> getUserEntryAttributes() {
+    Map<String, String[]> result = new LinkedHashMap<String, String[]>();
+    Map<String, LdapGroupMapping> groupMappings = getGroupMappings();
+    for (Map.Entry<String, LdapUserMapping> entry : getUserMappings().entrySet()) {
+      Set<String> attributes = new LinkedHashSet<String>();
+      attributes.add(entry.getValue().getEmailAttribute());
+      attributes.add(entry.getValue().getRealNameAttribute());
+      LdapGroupMapping groupMapping = groupMappings.get(entry.getKey());
+      if (groupMapping != null) {
+        String[] groupServerKeys = groupMapping.getGroupRequestServersOverride();
+        if (groupServerKeys == null) {
+          groupServerKeys = new String[] {entry.getKey()};
+        }
+        for (String groupServerKey : groupServerKeys) {
+          if (groupMappings.containsKey(groupServerKey)) {
+            attributes.addAll(Arrays.asList(groupMappings.get(groupServerKey).getUserAttributes()));
+          }
+        }
+      }
+      result.put(entry.getKey(), attributes.toArray(new String[attributes.size()]));
+    }
+    return result;
+  }
+
+  /**
+   * Closes connections opened to LDAP servers and stops background discovery and probing of servers.
+   */
+  public void stop() {
+    if (autodiscoveryRefresher != null) {
+      autodiscoveryRefresher.close();
+    }
+    if (healthProber != null) {
+      healthProber.close();
+    }
+    if (contextFactories != null) {
+      for (LdapContextFactory contextFactory : contextFactories.values()) {
+        contextFactory.close();
+      }
+    }
+  }
+
   private void initSimpleLdapConfiguration() {
     String realm = settings.getString(LDAP_PROPERTY_PREFIX + ".realm");
     String ldapUrlKey = LDAP_PROPERTY_PREFIX + ".url";
     String ldapUrl = settings.getString(ldapUrlKey);
     if (ldapUrl == null && realm != null) {
       LOG.info("Auto discovery mode");
-      List<LdapSrvRecord> ldapServers = ldapAutodiscovery.getLdapServers(realm);
-      if (ldapServers.isEmpty()) {
-        throw new SonarException(String.format("The property '%s' is empty and SonarQube is not able to auto-discover any LDAP server.", ldapUrlKey));
-      }
-      int index = 1;
-      for (LdapSrvRecord ldapSrvRecord : ldapServers) {
+      List<LdapSrvRecord> servers = new ArrayList<LdapSrvRecord>();
+      for (LdapSrvRecord ldapSrvRecord : ldapAutodiscovery.getLdapServers(realm)) {
         if (StringUtils.isNotBlank(ldapSrvRecord.getServerUrl())) {
           LOG.info("Detected server: " + ldapSrvRecord.getServerUrl());
-          LdapContextFactory contextFactory = new LdapContextFactory(settings, LDAP_PROPERTY_PREFIX, ldapSrvRecord.getServerUrl());
-          contextFactories.put(DEFAULT_LDAP_SERVER_KEY + index, contextFactory);
-          index++;
+          servers.add(ldapSrvRecord);
         }
       }
+      if (servers.isEmpty()) {
+        throw new SonarException(String.format("The property '%s' is empty and SonarQube is not able to auto-discover any LDAP server.", ldapUrlKey));
+      }
+      // all discovered servers serve the same directory, so they share user and group mappings
+      LdapContextFactory contextFactory = new LdapContextFactory(settings, LDAP_PROPERTY_PREFIX, servers, healthProber);
+      contextFactories.put(DEFAULT_LDAP_SERVER_KEY, contextFactory);
+      long refreshInterval = NumberUtils.toLong(settings.getString(LDAP_PROPERTY_PREFIX + ".autodiscovery.refreshInterval"),
+        DEFAULT_AUTODISCOVERY_REFRESH_INTERVAL);
+      if (refreshInterval > 0) {
+        LOG.info("Servers will be discovered again every {} seconds", refreshInterval);
+        autodiscoveryRefresher = new LdapAutodiscoveryRefresher(ldapAutodiscovery, realm, contextFactory, TimeUnit.SECONDS.toMillis(refreshInterval));
+        autodiscoveryRefresher.start();
+      }
     } else {
       if (StringUtils.isBlank(ldapUrl)) {
         throw new SonarException(String.format("The property '%s' is empty and no realm configured to try auto-discovery.", ldapUrlKey));
       }
-      LdapContextFactory contextFactory = new LdapContextFactory(settings, LDAP_PROPERTY_PREFIX, ldapUrl);
+      LdapContextFactory contextFactory = new LdapContextFactory(settings, LDAP_PROPERTY_PREFIX, ldapUrl, healthProber);
       contextFactories.put(DEFAULT_LDAP_SERVER_KEY, contextFactory);
     }
   }
@@ -188,7 +515,7 @@ public class LdapSettingsManager implements ServerExtension {
       if (StringUtils.isBlank(ldapUrl)) {
         throw new SonarException(String.format("The property '%s' property is empty while it is mandatory.", ldapUrlKey));
       }
-      LdapContextFactory contextFactory = new LdapContextFactory(settings, prefix, ldapUrl);
+      LdapContextFactory contextFactory = new LdapContextFactory(settings, prefix, ldapUrl, healthProber);
       contextFactories.put(serverKey, contextFactory);
     }
   }
@@ -0,0 +1,239 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.base.Predicate;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchResult;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Maps security identifiers (SIDs) of Active Directory groups to their IDs, for group mappings using {@code tokenGroups}.
+ * SIDs are never reused, so mapping is shared by all users and kept for a long time.
+ * SIDs, which are not known yet, are resolved all at once by a single search with disjunction of their values.
+ * SIDs of entries, which don't belong to group mapping (e.g. built-in groups), are remembered as well.
+ * SIDs of found groups are also indexed by DN, so that modified groups can be evicted one by one.
+ */
+public class LdapSidCache implements LdapChangeListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LdapSidCache.class);
+
+  static final String SID_ATTRIBUTE = "objectSid";
+
+  /**
+   * Bounds length of filter, so that it is accepted by server.
+   */
+  private static final int MAX_SIDS_PER_SEARCH = 500;
+
+  // ID of SID, which doesn't belong to group mapping
+  private static final String NOT_A_GROUP = "";
+
+  private final ExpiringCache<String, String> ids;
+  private final ExpiringCache<String, String> sidsByDn;
+  private final long ttlMs;
+  private final int maxSize;
+
+  /**
+   * @param ttlMs time to live of IDs, not shared between users if not positive
+   */
+  public LdapSidCache(long ttlMs, int maxSize) {
+    this(ttlMs, maxSize, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  LdapSidCache(long ttlMs, int maxSize, Ticker ticker) {
+    this.ttlMs = ttlMs;
+    this.maxSize = maxSize;
+    this.ids = ttlMs > 0 ? new ExpiringCache<String, String>(ttlMs, maxSize, ticker) : null;
+    this.sidsByDn = ttlMs > 0 ? new ExpiringCache<String, String>(ttlMs, maxSize, ticker) : null;
+  }
+
+  /**
+   * Cache which searches for all SIDs every time.
+   */
+  public static LdapSidCache disabled() {
+    return new LdapSidCache(0, 0);
+  }
+
+  /**
+   * @param sids binary SIDs, as returned by {@code tokenGroups} attribute
+   * @return IDs of groups of group mapping with specified SIDs
+   */
+  public Collection<String> resolve(String serverKey, LdapGroupMapping groupMapping, LdapContextFactory contextFactory, Collection<byte[]> sids)
+    throws NamingException {
+    List<String> result = Lists.newArrayList();
+    Map<String, byte[]> misses = Maps.newLinkedHashMap();
+    for (byte[] sid : sids) {
+      String sidString = toString(sid);
+      String id = ids == null ? null : ids.get(serverKey + ":" + sidString);
+      if (id == null) {
+        misses.put(sidString, sid);
+      } else if (!NOT_A_GROUP.equals(id)) {
+        result.add(id);
+      }
+    }
+    List<String> keys = Lists.newArrayList(misses.keySet());
+    for (int from = 0; from < keys.size(); from += MAX_SIDS_PER_SEARCH) {
+      List<String> batch = keys.subList(from, Math.min(from + MAX_SIDS_PER_SEARCH, keys.size()));
+      Map<String, SearchResult> found = search(groupMapping, contextFactory, batch, misses);
+      for (String sidString : batch) {
+        SearchResult group = found.get(sidString);
+        String id = group == null ? null : (String) group.getAttributes().get(groupMapping.getIdAttribute()).get();
+        if (id != null) {
+          result.add(id);
+        }
+        if (ids != null) {
+          ids.put(serverKey + ":" + sidString, id == null ? NOT_A_GROUP : id);
+          if (group != null) {
+            sidsByDn.put(serverKey + ":" + normalize(group.getNameInNamespace()), sidString);
+          }
+        }
+      }
+    }
+    if (!misses.isEmpty()) {
+      LOG.debug("Resolved {} of {} SIDs of groups in {} by search", new Object[] {misses.size(), sids.size(), serverKey});
+    }
+    return result;
+  }
+
+  /**
+   * @return found groups, which have ID, by string form of their SIDs
+   */
+  private static Map<String, SearchResult> search(LdapGroupMapping groupMapping, LdapContextFactory contextFactory, List<String> sidStrings,
+    Map<String, byte[]> sids) throws NamingException {
+    StringBuilder request = new StringBuilder("(&").append(groupMapping.getRequestOfAll()).append("(|");
+    for (String sidString : sidStrings) {
+      request.append('(').append(SID_ATTRIBUTE).append('=').append(LdapFilterTemplate.escape(sids.get(sidString))).append(')');
+    }
+    request.append("))");
+    Map<String, SearchResult> result = Maps.newHashMap();
+    NamingEnumeration<SearchResult> enumeration = new LdapSearch(contextFactory)
+      .setBaseDn(groupMapping.getBaseDn())
+      .setRequest(request.toString())
+      .setParameters()
+      .returns(groupMapping.getIdAttribute(), SID_ATTRIBUTE)
+      .find();
+    try {
+      while (enumeration.hasMore()) {
+        SearchResult group = enumeration.next();
+        Attribute sid = group.getAttributes().get(SID_ATTRIBUTE);
+        Attribute id = group.getAttributes().get(groupMapping.getIdAttribute());
+        if (sid != null && id != null && sid.get() instanceof byte[]) {
+          result.put(toString((byte[]) sid.get()), group);
+        }
+      }
+    } finally {
+      enumeration.close();
+    }
+    return result;
+  }
+
+  /**
+   * @return string form of SID, for example "S-1-5-21-3623811015-3361044348-30300820-1013"
+   */
+  @VisibleForTesting
+  static String toString(byte[] sid) {
+    StringBuilder result = new StringBuilder("S-").append(sid[0] & 0xFF);
+    long authority = 0;
+    for (int i = 2; i < 8; i++) {
+      authority = (authority << 8) | (sid[i] & 0xFF);
+    }
+    result.append('-').append(authority);
+    int count = sid[1] & 0xFF;
+    for (int i = 0; i < count; i++) {
+      long subAuthority = 0;
+      for (int j = 3; j >= 0; j--) {
+        subAuthority = (subAuthority << 8) | (sid[8 + 4 * i + j] & 0xFF);
+      }
+      result.append('-').append(subAuthority);
+    }
+    return result.toString();
+  }
+
+  public void invalidateAll() {
+    if (ids != null) {
+      ids.invalidateAll();
+      sidsByDn.invalidateAll();
+    }
+  }
+
+  public void usersChanged(String serverKey, Collection<String> logins) {
+    // only groups are cached
+  }
+
+  /**
+   * SIDs of known groups are evicted by their DNs. Group with unknown DN might have been remembered as not a group of mapping,
+   * e.g. before it started to match request of mapping, so in such case only SIDs of this kind are evicted for specified server.
+   */
+  public void groupsChanged(final String serverKey, Collection<String> dns) {
+    if (ids == null) {
+      return;
+    }
+    boolean unknown = false;
+    for (String dn : dns) {
+      String key = serverKey + ":" + normalize(dn);
+      String sidString = sidsByDn.get(key);
+      if (sidString == null) {
+        unknown = true;
+      } else {
+        sidsByDn.invalidate(key);
+        ids.invalidate(serverKey + ":" + sidString);
+      }
+    }
+    if (unknown) {
+      ids.invalidateAll(new Predicate<Map.Entry<String, String>>() {
+        public boolean apply(Map.Entry<String, String> entry) {
+          return NOT_A_GROUP.equals(entry.getValue()) && entry.getKey().startsWith(serverKey + ":");
+        }
+      });
+    }
+  }
+
+  public void allChanged(String serverKey) {
+    invalidateAll();
+  }
+
+  private static String normalize(String dn) {
+    return dn.toLowerCase(Locale.ENGLISH);
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+      .add("ttl", ttlMs)
+      .add("maxSize", maxSize)
+      .toString();
+  }
+
+}
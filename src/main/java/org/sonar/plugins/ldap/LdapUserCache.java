@@ -0,0 +1,330 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import javax.annotation.Nullable;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchResult;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers on which server and under which DN users were found, so that lookups of known users don't require subtree search.
+ * Additionally keeps entries of users for a short time, so that consecutive calls made for a single login
+ * (authentication, user details and groups) are served by a single request, which returns attributes required by all of them.
+ * Shared by {@link LdapAuthenticator}, {@link LdapUsersProvider} and {@link LdapGroupsProvider}.
+ */
+public class LdapUserCache implements LdapChangeListener {
+
+  private static final String DN_ATTRIBUTE = "dn";
+
+  private final ExpiringCache<String, CachedUser> users;
+  private final ExpiringCache<String, CachedEntry> entries;
+  private final Map<String, String[]> entryAttributes;
+  private final List<String> serverKeys;
+  private final long ttlMs;
+  private final long entryTtlMs;
+  private final int maxSize;
+
+  /**
+   * @param ttlMs time to live of entries, cache is disabled if not positive
+   */
+  public LdapUserCache(long ttlMs, int maxSize) {
+    this(ttlMs, 0, maxSize, ImmutableMap.<String, String[]>of());
+  }
+
+  /**
+   * @param ttlMs time to live of DNs, disabled if not positive
+   * @param entryTtlMs time to live of user entries, disabled if not positive
+   * @param entryAttributes attributes to fetch for every user entry, by server key in configured order of servers,
+   * which also defines the server remembered for user found on several of them
+   */
+  public LdapUserCache(long ttlMs, long entryTtlMs, int maxSize, Map<String, String[]> entryAttributes) {
+    this(ttlMs, entryTtlMs, maxSize, entryAttributes, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  LdapUserCache(long ttlMs, int maxSize, Ticker ticker) {
+    this(ttlMs, 0, maxSize, ImmutableMap.<String, String[]>of(), ticker);
+  }
+
+  @VisibleForTesting
+  LdapUserCache(long ttlMs, long entryTtlMs, int maxSize, Map<String, String[]> entryAttributes, Ticker ticker) {
+    this.ttlMs = ttlMs;
+    this.entryTtlMs = entryTtlMs;
+    this.maxSize = maxSize;
+    this.users = ttlMs > 0 ? new ExpiringCache<String, CachedUser>(ttlMs, maxSize, ticker) : null;
+    this.entries = entryTtlMs > 0 ? new ExpiringCache<String, CachedEntry>(entryTtlMs, maxSize, ticker) : null;
+    this.entryAttributes = ImmutableMap.copyOf(entryAttributes);
+    this.serverKeys = ImmutableList.copyOf(entryAttributes.keySet());
+  }
+
+  /**
+   * Cache which always misses.
+   */
+  public static LdapUserCache disabled() {
+    return new LdapUserCache(0, 0);
+  }
+
+  public boolean isEnabled() {
+    return users != null || entries != null;
+  }
+
+  /**
+   * @return server key and DN of user, or null if unknown
+   */
+  @Nullable
+  public CachedUser get(String login) {
+    return users == null ? null : users.get(login);
+  }
+
+  /**
+   * @return true if DN or entry of user on specified server is known, i.e. might be outdated
+   */
+  public boolean isKnown(String serverKey, String login) {
+    CachedUser cached = get(login);
+    if (cached != null && serverKey.equals(cached.getServerKey())) {
+      return true;
+    }
+    CachedEntry entry = entries == null ? null : entries.get(login);
+    return entry != null && serverKey.equals(entry.serverKey);
+  }
+
+  /**
+   * Remembers server and DN of user, unless user is already known on a server, which goes first in configured order,
+   * so that the server used for user does not depend on which of parallel searches completes last.
+   */
+  public void put(String login, String serverKey, String dn) {
+    if (users != null) {
+      synchronized (users) {
+        CachedUser cached = users.get(login);
+        if (cached == null || !precedes(cached.getServerKey(), serverKey)) {
+          users.put(login, new CachedUser(serverKey, dn));
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if first server goes before second one in configured order, false if order unknown
+   */
+  private boolean precedes(String first, String second) {
+    int firstIndex = serverKeys.indexOf(first);
+    int secondIndex = serverKeys.indexOf(second);
+    return firstIndex >= 0 && (secondIndex < 0 || firstIndex < secondIndex);
+  }
+
+  public void invalidate(String login) {
+    if (users != null) {
+      users.invalidate(login);
+    }
+    if (entries != null) {
+      entries.invalidate(login);
+    }
+  }
+
+  public void invalidateAll() {
+    if (users != null) {
+      users.invalidateAll();
+    }
+    if (entries != null) {
+      entries.invalidateAll();
+    }
+  }
+
+  public void usersChanged(String serverKey, Collection<String> logins) {
+    for (String login : logins) {
+      invalidate(login);
+    }
+  }
+
+  public void groupsChanged(String serverKey, Collection<String> dns) {
+    // entries of groups are not cached
+  }
+
+  public void allChanged(String serverKey) {
+    invalidateAll();
+  }
+
+  /**
+   * @return specified server keys, with the one where user was found previously moved to the first place
+   */
+  public List<String> orderServerKeys(String login, Collection<String> serverKeys) {
+    List<String> result = Lists.newArrayList(serverKeys);
+    CachedUser cached = get(login);
+    if (cached != null && result.remove(cached.getServerKey())) {
+      result.add(0, cached.getServerKey());
+    }
+    return result;
+  }
+
+  /**
+   * Finds user entry on specified server. Entry fetched recently for the same login is reused if it contains all requested attributes.
+   * Otherwise for known user this is a lookup by DN, which also checks that user still matches request of user mapping,
+   * for example is not disabled, so that cached DN does not bypass restrictions of request.
+   *
+   * @param attributes attributes to return, where "dn" is ignored
+   * @return result, or null if not found
+   * @throws NamingException if unable to perform search, or non unique result
+   */
+  @Nullable
+  public SearchResult find(String serverKey, LdapUserMapping userMapping, LdapContextFactory contextFactory, String login, String... attributes)
+    throws NamingException {
+    return find(serverKey, userMapping, contextFactory, LdapDeadline.unlimited(), login, attributes);
+  }
+
+  /**
+   * Same as {@link #find(String, LdapUserMapping, LdapContextFactory, String, String...)}, but requests are limited by specified deadline.
+   */
+  @Nullable
+  SearchResult find(String serverKey, LdapUserMapping userMapping, LdapContextFactory contextFactory, LdapDeadline deadline, String login,
+    String... attributes) throws NamingException {
+    SearchResult result = getEntry(serverKey, login, attributes);
+    if (result != null) {
+      return result;
+    }
+    CachedUser cached = get(login);
+    String[] attributesToFetch = getAttributesToFetch(serverKey, attributes);
+    if (cached != null && serverKey.equals(cached.getServerKey())) {
+      result = findByDn(userMapping, contextFactory, deadline, cached.getDn(), attributesToFetch);
+      if (result != null) {
+        putEntry(login, serverKey, result, attributesToFetch);
+        return result;
+      }
+      invalidate(login);
+    }
+    result = userMapping.createSearch(contextFactory, login).returns(attributesToFetch).setDeadline(deadline).findUnique();
+    if (result != null) {
+      put(login, serverKey, result.getNameInNamespace());
+      putEntry(login, serverKey, result, attributesToFetch);
+    }
+    return result;
+  }
+
+  @Nullable
+  private SearchResult getEntry(String serverKey, String login, String... attributes) {
+    if (entries == null) {
+      return null;
+    }
+    CachedEntry entry = entries.get(login);
+    if (entry == null || !serverKey.equals(entry.serverKey)) {
+      return null;
+    }
+    for (String attribute : attributes) {
+      if (!DN_ATTRIBUTE.equals(attribute) && !entry.attributes.contains(attribute.toLowerCase(Locale.ENGLISH))) {
+        return null;
+      }
+    }
+    return entry.result;
+  }
+
+  private void putEntry(String login, String serverKey, SearchResult result, String[] attributes) {
+    if (entries != null) {
+      Set<String> ids = Sets.newHashSet();
+      for (String attribute : attributes) {
+        ids.add(attribute.toLowerCase(Locale.ENGLISH));
+      }
+      synchronized (entries) {
+        CachedEntry cached = entries.get(login);
+        if (cached == null || !precedes(cached.serverKey, serverKey)) {
+          entries.put(login, new CachedEntry(serverKey, result, ids));
+        }
+      }
+    }
+  }
+
+  /**
+   * @return requested attributes, extended by attributes of the entry, if entries are cached
+   */
+  private String[] getAttributesToFetch(String serverKey, String... attributes) {
+    Set<String> result = Sets.newLinkedHashSet();
+    if (entries != null && entryAttributes.containsKey(serverKey)) {
+      result.addAll(Arrays.asList(entryAttributes.get(serverKey)));
+    }
+    result.addAll(Arrays.asList(attributes));
+    result.remove(DN_ATTRIBUTE);
+    return result.toArray(new String[result.size()]);
+  }
+
+  @Nullable
+  private static SearchResult findByDn(LdapUserMapping userMapping, LdapContextFactory contextFactory, LdapDeadline deadline, String dn,
+    String... attributes) throws NamingException {
+    try {
+      return userMapping.createSearchByDn(contextFactory, dn).returns(attributes).setDeadline(deadline).findUnique();
+    } catch (NameNotFoundException e) {
+      // user was moved or removed
+      return null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+      .add("ttl", ttlMs)
+      .add("entryTtl", entryTtlMs)
+      .add("maxSize", maxSize)
+      .toString();
+  }
+
+  public static final class CachedUser {
+    private final String serverKey;
+    private final String dn;
+
+    CachedUser(String serverKey, String dn) {
+      this.serverKey = serverKey;
+      this.dn = dn;
+    }
+
+    public String getServerKey() {
+      return serverKey;
+    }
+
+    public String getDn() {
+      return dn;
+    }
+  }
+
+  private static final class CachedEntry {
+    private final String serverKey;
+    private final SearchResult result;
+    private final Set<String> attributes;
+
+    CachedEntry(String serverKey, SearchResult result, Set<String> attributes) {
+      this.serverKey = serverKey;
+      this.result = result;
+      this.attributes = attributes;
+    }
+  }
+
+}
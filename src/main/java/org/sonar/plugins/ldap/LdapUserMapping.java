@@ -24,6 +24,12 @@ import org.apache.commons.lang.StringUtils;
 import org.slf4j.LoggerFactory;
 import org.sonar.api.config.Settings;
 
+import javax.annotation.Nullable;
+import javax.naming.directory.SearchControls;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 /**
  * @author Evgeny Mandrikov
  */
@@ -34,9 +40,12 @@ public class LdapUserMapping {
   private static final String DEFAULT_NAME_ATTRIBUTE = "cn";
   private static final String DEFAULT_EMAIL_ATTRIBUTE = "mail";
   private static final String DEFAULT_REQUEST = "(&(objectClass=inetOrgPerson)(uid={login}))";
+  private static final Pattern LOGIN_ASSERTION = Pattern.compile("\\(([^()=~<>]+)=\\{0\\}\\)");
 
   private final String baseDn;
   private final String request;
+  private final LdapFilterTemplate template;
+  private final String requestOfAll;
   private final String realNameAttribute;
   private final String emailAttribute;
 
@@ -73,6 +82,8 @@ public class LdapUserMapping {
     }
     req = StringUtils.replace(req, "{login}", "{0}");
     this.request = req;
+    this.template = LdapFilterTemplate.compile(req);
+    this.requestOfAll = StringUtils.replace(req, "{0}", "*");
   }
 
   /**
@@ -81,10 +92,22 @@ public class LdapUserMapping {
   public LdapSearch createSearch(LdapContextFactory contextFactory, String username) {
     return new LdapSearch(contextFactory)
         .setBaseDn(getBaseDn())
-        .setRequest(getRequest())
+        .setRequest(template)
         .setParameters(username);
   }
 
+  /**
+   * Search for entry of user with known DN, which is much cheaper than {@link #createSearch(LdapContextFactory, String)}.
+   * Entry is found only if it still matches request, so that users excluded by request meanwhile are not found.
+   */
+  public LdapSearch createSearchByDn(LdapContextFactory contextFactory, String dn) {
+    return new LdapSearch(contextFactory)
+        .setBaseDn(dn)
+        .setScope(SearchControls.OBJECT_SCOPE)
+        .setRequest(requestOfAll)
+        .setParameters();
+  }
+
   /**
    * Base DN. For example "ou=users,o=mycompany" or "cn=users" (Active Directory Server).
    */
@@ -103,6 +126,22 @@ public class LdapUserMapping {
     return request;
   }
 
+  /**
+   * Request for all users, i.e. with any login.
+   */
+  public String getRequestOfAll() {
+    return requestOfAll;
+  }
+
+  /**
+   * Attribute compared with login in request, or null if request does not contain a simple comparison with login.
+   */
+  @Nullable
+  public String getLoginAttribute() {
+    Matcher matcher = LOGIN_ASSERTION.matcher(request);
+    return matcher.find() ? matcher.group(1) : null;
+  }
+
   /**
    * Real Name Attribute. For example "cn".
    */
@@ -41,10 +41,19 @@ public class LdapUsersProvider extends ExternalUsersProvider {
   private static final Logger LOG = LoggerFactory.getLogger(LdapUsersProvider.class);
   private final Map<String, LdapContextFactory> contextFactories;
   private final Map<String, LdapUserMapping> userMappings;
+  private final LdapUserCache userCache;
 
   public LdapUsersProvider(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings) {
+    this(contextFactories, userMappings, LdapUserCache.disabled());
+  }
+
+  /**
+   * @param userCache cache of user DNs shared with authenticator and groups provider
+   */
+  public LdapUsersProvider(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings, LdapUserCache userCache) {
     this.contextFactories = contextFactories;
     this.userMappings = userMappings;
+    this.userCache = userCache;
   }
 
   private static String getAttributeValue(@Nullable Attribute attribute) throws NamingException {
@@ -68,12 +77,16 @@ public class LdapUsersProvider extends ExternalUsersProvider {
     }
     UserDetails details = null;
     SonarException sonarException = null;
-    for (String serverKey : userMappings.keySet()) {
+    for (String serverKey : userCache.orderServerKeys(username, userMappings.keySet())) {
+      if (!contextFactories.get(serverKey).isAvailable()) {
+        LOG.debug("Skipping server {}, which is not available", serverKey);
+        sonarException = new SonarException("Unable to retrieve details for user " + username + " in " + serverKey + ": server is not available");
+        continue;
+      }
       SearchResult searchResult = null;
       try {
-        searchResult = userMappings.get(serverKey).createSearch(contextFactories.get(serverKey), username)
-            .returns(userMappings.get(serverKey).getEmailAttribute(), userMappings.get(serverKey).getRealNameAttribute())
-            .findUnique();
+        searchResult = userCache.find(serverKey, userMappings.get(serverKey), contextFactories.get(serverKey), username,
+            userMappings.get(serverKey).getEmailAttribute(), userMappings.get(serverKey).getRealNameAttribute());
       } catch (NamingException e) {
         // just in case if Sonar silently swallowed exception
         LOG.debug(e.getMessage(), e);
@@ -0,0 +1,91 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.base.Predicate;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ExpiringCacheTest {
+
+  private final FakeTicker ticker = new FakeTicker();
+
+  @Test
+  public void shouldExpire() {
+    ExpiringCache<String, String> cache = new ExpiringCache<String, String>(1000, 10, ticker);
+    cache.put("godin", "uid=godin");
+    assertThat(cache.get("godin")).isEqualTo("uid=godin");
+
+    ticker.advance(999, TimeUnit.MILLISECONDS);
+    assertThat(cache.get("godin")).isEqualTo("uid=godin");
+
+    ticker.advance(2, TimeUnit.MILLISECONDS);
+    assertThat(cache.get("godin")).isNull();
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldEvictLeastRecentlyUsed() {
+    ExpiringCache<String, String> cache = new ExpiringCache<String, String>(1000, 2, ticker);
+    cache.put("godin", "1");
+    cache.put("tester", "2");
+    cache.get("godin");
+    cache.put("robby", "3");
+
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.get("tester")).isNull();
+    assertThat(cache.get("godin")).isEqualTo("1");
+    assertThat(cache.get("robby")).isEqualTo("3");
+  }
+
+  @Test
+  public void shouldInvalidate() {
+    ExpiringCache<String, String> cache = new ExpiringCache<String, String>(1000, 10, ticker);
+    cache.put("godin", "1");
+    cache.put("tester", "2");
+
+    cache.invalidate("godin");
+    assertThat(cache.get("godin")).isNull();
+    assertThat(cache.get("tester")).isEqualTo("2");
+
+    cache.invalidateAll();
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldInvalidateMatchingEntries() {
+    ExpiringCache<String, String> cache = new ExpiringCache<String, String>(1000, 10, ticker);
+    cache.put("godin", "1");
+    cache.put("tester", "2");
+
+    cache.invalidateAll(new Predicate<Map.Entry<String, String>>() {
+      public boolean apply(Map.Entry<String, String> entry) {
+        return "2".equals(entry.getValue());
+      }
+    });
+    assertThat(cache.get("godin")).isEqualTo("1");
+    assertThat(cache.get("tester")).isNull();
+  }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.collect.Iterators;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.SearchResult;
+
+import java.util.Iterator;
+
+/**
+ * Results of search for tests, which returns specified entries.
+ */
+public class FakeNamingEnumeration implements NamingEnumeration<SearchResult> {
+
+  private final Iterator<SearchResult> iterator;
+
+  public FakeNamingEnumeration(SearchResult... entries) {
+    this.iterator = Iterators.forArray(entries);
+  }
+
+  public boolean hasMore() {
+    return iterator.hasNext();
+  }
+
+  public SearchResult next() {
+    return iterator.next();
+  }
+
+  public boolean hasMoreElements() {
+    return iterator.hasNext();
+  }
+
+  public SearchResult nextElement() {
+    return iterator.next();
+  }
+
+  public void close() {
+    // nothing to close
+  }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class LdapAuthenticationCacheTest {
+
+  private final FakeTicker ticker = new FakeTicker();
+  private final LdapAuthenticationCache cache = new LdapAuthenticationCache(60000, 10, ticker);
+
+  @Test
+  public void shouldRememberOnlySamePassword() {
+    assertThat(cache.isAuthenticated("godin", "secret1")).isFalse();
+
+    cache.authenticated("godin", "secret1");
+    assertThat(cache.isAuthenticated("godin", "secret1")).isTrue();
+    assertThat(cache.isAuthenticated("godin", "wrong")).isFalse();
+    assertThat(cache.isAuthenticated("godin", "")).isFalse();
+    assertThat(cache.isAuthenticated("godin", null)).isFalse();
+    assertThat(cache.isAuthenticated("tester", "secret1")).isFalse();
+  }
+
+  @Test
+  public void shouldForgetAfterTimeToLive() {
+    cache.authenticated("godin", "secret1");
+    ticker.advance(61, TimeUnit.SECONDS);
+    assertThat(cache.isAuthenticated("godin", "secret1")).isFalse();
+  }
+
+  @Test
+  public void shouldInvalidate() {
+    cache.authenticated("godin", "secret1");
+    cache.invalidate("godin");
+    assertThat(cache.isAuthenticated("godin", "secret1")).isFalse();
+  }
+
+}
@@ -19,11 +19,33 @@
  */
 package org.sonar.plugins.ldap;
 
+import com.google.common.collect.ImmutableMap;
 import org.junit.ClassRule;
 import org.junit.Test;
+import org.mockito.Matchers;
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.SonarException;
 import org.sonar.plugins.ldap.server.LdapServer;
 
+import javax.naming.AuthenticationException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutorService;
+
 import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class LdapAuthenticatorTest {
 
@@ -69,6 +91,61 @@ public class LdapAuthenticatorTest {
     assertThat(authenticator.authenticate("godin", null)).isFalse();
   }
 
+  @Test
+  public void testPooledPasswordVerification() {
+    Settings settings = LdapSettingsFactory.generateAuthenticationSettings(exampleServer, null);
+    settings.setProperty("ldap.pool.verifyPasswords", true);
+    settings.setProperty("ldap.pool.maxSize", 1);
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    LdapAuthenticator authenticator = new LdapAuthenticator(settingsManager.getContextFactories(), settingsManager.getUserMappings());
+
+    // same connection is re-bound for each check
+    assertThat(authenticator.authenticate("godin", "secret1")).isTrue();
+    assertThat(authenticator.authenticate("godin", "wrong")).isFalse();
+    assertThat(authenticator.authenticate("tester", "secret2")).isTrue();
+    assertThat(authenticator.authenticate("tester", "secret1")).isFalse();
+    assertThat(authenticator.authenticate("godin", "secret1")).isTrue();
+    settingsManager.stop();
+  }
+
+  @Test
+  public void testAuthenticationCache() {
+    Settings settings = LdapSettingsFactory.generateAuthenticationSettings(exampleServer, null);
+    settings.setProperty("ldap.cache.authentication.ttl", 60);
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    LdapAuthenticator authenticator = new LdapAuthenticator(settingsManager.getContextFactories(), settingsManager.getUserMappings(),
+      settingsManager.createAuthenticationCache(), LdapUserCache.disabled());
+
+    assertThat(authenticator.authenticate("godin", "secret1")).isTrue();
+    settingsManager.stop();
+    // served from cache while server not reachable
+    assertThat(authenticator.authenticate("godin", "secret1")).isTrue();
+    assertThat(authenticator.authenticate("godin", "wrong")).isFalse();
+    // failed authentication forgets previous success
+    assertThat(authenticator.authenticate("godin", "secret1")).isFalse();
+  }
+
+  @Test
+  public void testParallelMultiLdap() {
+    Settings settings = LdapSettingsFactory.generateAuthenticationSettings(exampleServer, infosupportServer);
+    settings.setProperty("ldap.authentication.parallel", true);
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    ExecutorService executor = settingsManager.createAuthenticationExecutor();
+    assertThat(executor).isNotNull();
+    LdapAuthenticator authenticator = new LdapAuthenticator(settingsManager.getContextFactories(), settingsManager.getUserMappings(),
+      null, LdapUserCache.disabled(), executor, settingsManager.getAuthenticationTimeout());
+
+    assertThat(authenticator.authenticate("godin", "secret1")).isTrue();
+    assertThat(authenticator.authenticate("godin", "wrong")).isFalse();
+    // user exists only in second server
+    assertThat(authenticator.authenticate("robby", "secret1")).isTrue();
+    assertThat(authenticator.authenticate("robby", "wrong")).isFalse();
+    assertThat(authenticator.authenticate("notfound", "wrong")).isFalse();
+
+    authenticator.close();
+    assertThat(executor.isShutdown()).isTrue();
+  }
+
   @Test
   public void testSimpleMultiLdap() {
     LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateAuthenticationSettings(exampleServer, infosupportServer), new LdapAutodiscovery());
@@ -121,4 +198,84 @@ public class LdapAuthenticatorTest {
     assertThat(authenticator.authenticate("robby", "wrong")).isFalse();
   }
 
+  @Test
+  public void shouldBindOnceWhenPasswordWrongForCachedDn() throws Exception {
+    LdapContextFactory contextFactory = mock(LdapContextFactory.class);
+    when(contextFactory.isAvailable()).thenReturn(true);
+    doThrow(new AuthenticationException("[LDAP: error code 49 - Invalid Credentials]")).when(contextFactory).verifyCredentials(anyString(), anyString(), any(LdapDeadline.class));
+    String dn = "cn=Evgeny Mandrikov,ou=users,dc=example,dc=org";
+    LdapUserMapping userMapping = mock(LdapUserMapping.class);
+    LdapSearch searchByDn = mockSearch(dn);
+    when(userMapping.createSearchByDn(contextFactory, dn)).thenReturn(searchByDn);
+    LdapUserCache userCache = new LdapUserCache(60000, 10);
+    userCache.put("godin", "example", dn);
+    LdapAuthenticator authenticator = new LdapAuthenticator(ImmutableMap.of("example", contextFactory),
+      ImmutableMap.of("example", userMapping), null, userCache);
+
+    assertThat(authenticator.authenticate("godin", "wrong")).isFalse();
+    verify(contextFactory, times(1)).verifyCredentials(anyString(), anyString(), any(LdapDeadline.class));
+    assertThat(userCache.get("godin")).isNotNull();
+  }
+
+  @Test
+  public void shouldSearchAgainWhenCachedDnNotFound() throws Exception {
+    String dn = "cn=Evgeny Mandrikov,ou=users,dc=example,dc=org";
+    LdapContextFactory contextFactory = mock(LdapContextFactory.class);
+    when(contextFactory.isAvailable()).thenReturn(true);
+    doThrow(new NameNotFoundException()).when(contextFactory).verifyCredentials(eq("cn=moved,ou=users,dc=example,dc=org"), eq("secret1"), any(LdapDeadline.class));
+    LdapUserMapping userMapping = mock(LdapUserMapping.class);
+    LdapSearch search = mockSearch(dn);
+    when(userMapping.createSearch(contextFactory, "godin")).thenReturn(search);
+    // entry is found by cached DN, but removed before bind
+    LdapSearch searchByDn = mockSearch("cn=moved,ou=users,dc=example,dc=org");
+    when(userMapping.createSearchByDn(contextFactory, "cn=moved,ou=users,dc=example,dc=org")).thenReturn(searchByDn);
+    LdapUserCache userCache = new LdapUserCache(60000, 10);
+    userCache.put("godin", "example", "cn=moved,ou=users,dc=example,dc=org");
+    LdapAuthenticator authenticator = new LdapAuthenticator(ImmutableMap.of("example", contextFactory),
+      ImmutableMap.of("example", userMapping), null, userCache);
+
+    assertThat(authenticator.authenticate("godin", "secret1")).isTrue();
+    verify(contextFactory).verifyCredentials(eq(dn), eq("secret1"), any(LdapDeadline.class));
+    assertThat(userCache.get("godin").getDn()).isEqualTo(dn);
+  }
+
+  @Test
+  public void shouldFailWhenBudgetRunsOutDuringAuthentication() throws Exception {
+    // accepts connections, but never responds
+    ServerSocket server = new ServerSocket(0);
+    try {
+      Settings settings = new Settings()
+        .setProperty("ldap.url", "ldap://localhost:" + server.getLocalPort())
+        .setProperty("ldap.user.baseDn", "dc=example,dc=org")
+        .setProperty("ldap.connectTimeout", 30000)
+        .setProperty("ldap.readTimeout", 30000);
+      LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+      LdapAuthenticator authenticator = new LdapAuthenticator(settingsManager.getContextFactories(), settingsManager.getUserMappings(),
+        null, LdapUserCache.disabled(), null, 500);
+
+      long start = System.currentTimeMillis();
+      try {
+        authenticator.authenticate("godin", "secret1");
+        fail();
+      } catch (SonarException e) {
+        assertThat(e.getMessage()).isEqualTo("Unable to authenticate user godin: time budget of 500ms exceeded");
+      }
+      // timeouts of requests are reduced to the budget
+      assertThat(System.currentTimeMillis() - start).isLessThan(5000L);
+      settingsManager.stop();
+    } finally {
+      server.close();
+    }
+  }
+
+  private static LdapSearch mockSearch(String dn) throws NamingException {
+    LdapSearch search = mock(LdapSearch.class);
+    when(search.returns(Matchers.<String>anyVararg())).thenReturn(search);
+    when(search.setDeadline(any(LdapDeadline.class))).thenReturn(search);
+    SearchResult result = new SearchResult(dn, null, new BasicAttributes(true));
+    result.setNameInNamespace(dn);
+    when(search.findUnique()).thenReturn(result);
+    return search;
+  }
+
 }
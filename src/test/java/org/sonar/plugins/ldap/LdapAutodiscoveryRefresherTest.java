@@ -0,0 +1,64 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.ldap.LdapAutodiscovery.LdapSrvRecord;
+import org.sonar.plugins.ldap.LdapContextFactory.Endpoint;
+
+import java.util.Collections;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LdapAutodiscoveryRefresherTest {
+
+  private static final LdapSrvRecord LDAP1 = new LdapSrvRecord("ldap://dc1:389", 0, 100);
+  private static final LdapSrvRecord LDAP2 = new LdapSrvRecord("ldap://dc2:389", 0, 100);
+  private static final LdapSrvRecord LDAP3 = new LdapSrvRecord("ldap://dc3:389", 0, 100);
+
+  @Test
+  public void shouldReplaceServers() {
+    LdapAutodiscovery autodiscovery = mock(LdapAutodiscovery.class);
+    LdapContextFactory contextFactory = new LdapContextFactory(new Settings(), "ldap", ImmutableList.of(LDAP1, LDAP2), null);
+    Endpoint kept = contextFactory.getEndpoints().get(1);
+    LdapAutodiscoveryRefresher refresher = new LdapAutodiscoveryRefresher(autodiscovery, "example.org", contextFactory, 1000);
+
+    when(autodiscovery.getLdapServers("example.org")).thenReturn(ImmutableList.of(LDAP2, LDAP3));
+    refresher.refresh();
+    assertThat(contextFactory.getProviderUrl()).isEqualTo("ldap://dc2:389 ldap://dc3:389");
+    assertThat(contextFactory.getEndpoints().get(0)).isSameAs(kept);
+  }
+
+  @Test
+  public void shouldKeepServersWhenResolutionFails() {
+    LdapAutodiscovery autodiscovery = mock(LdapAutodiscovery.class);
+    LdapContextFactory contextFactory = new LdapContextFactory(new Settings(), "ldap", ImmutableList.of(LDAP1), null);
+    LdapAutodiscoveryRefresher refresher = new LdapAutodiscoveryRefresher(autodiscovery, "example.org", contextFactory, 1000);
+
+    when(autodiscovery.getLdapServers("example.org")).thenReturn(Collections.<LdapSrvRecord>emptyList());
+    refresher.refresh();
+    assertThat(contextFactory.getProviderUrl()).isEqualTo("ldap://dc1:389");
+  }
+
+}
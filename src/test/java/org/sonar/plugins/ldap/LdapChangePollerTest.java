@@ -0,0 +1,192 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sonar.api.config.Settings;
+
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.InitialDirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class LdapChangePollerTest {
+
+  private final LdapContextFactory contextFactory = mock(LdapContextFactory.class);
+  private final InitialDirContext context = mock(InitialDirContext.class);
+  private final LdapChangeListener listener = mock(LdapChangeListener.class);
+  private LdapChangePoller poller;
+
+  @Before
+  public void setUp() throws Exception {
+    Settings settings = new Settings()
+      .setProperty("ldap.user.baseDn", "ou=users,dc=example,dc=org")
+      .setProperty("ldap.group.baseDn", "ou=groups,dc=example,dc=org");
+    Map<String, LdapContextFactory> contextFactories = ImmutableMap.of("<default>", contextFactory);
+    Map<String, LdapUserMapping> userMappings = ImmutableMap.of("<default>", new LdapUserMapping(settings, "ldap"));
+    Map<String, LdapGroupMapping> groupMappings = ImmutableMap.of("<default>", new LdapGroupMapping(settings, "ldap", null, null));
+    poller = new LdapChangePoller(contextFactories, userMappings, groupMappings, Arrays.asList(listener), 60000);
+    when(contextFactory.borrowBindContext()).thenReturn(context);
+  }
+
+  @Test
+  public void shouldReportEntriesModifiedAfterHighestCommittedUsn() throws Exception {
+    when(context.getAttributes(eq(""), any(String[].class))).thenReturn(rootDse("100", "dc1"), rootDse("105", "dc1"));
+    when(context.search(eq("ou=users,dc=example,dc=org"), contains("(uSNChanged>=101)"), any(SearchControls.class)))
+      .thenReturn(new FakeNamingEnumeration(entry("cn=godin,ou=users,dc=example,dc=org", "uid", "godin")));
+    when(context.search(eq("ou=groups,dc=example,dc=org"), contains("(uSNChanged>=101)"), any(SearchControls.class)))
+      .thenReturn(new FakeNamingEnumeration(entry("cn=sonar-users,ou=groups,dc=example,dc=org", "cn", "sonar-users")));
+
+    // first poll only remembers high-water mark
+    poller.poll();
+    verifyZeroInteractions(listener);
+
+    poller.poll();
+    verify(listener).usersChanged("<default>", Arrays.asList("godin"));
+    verify(listener).groupsChanged("<default>", Arrays.asList("cn=sonar-users,ou=groups,dc=example,dc=org"));
+    verify(listener, never()).allChanged(anyString());
+    verify(contextFactory).releaseBindContext(context, false);
+  }
+
+  @Test
+  public void shouldReadChangesPageByPage() throws Exception {
+    InitialLdapContext pagedContext = mock(InitialLdapContext.class);
+    PagedResultsResponseControl response = mock(PagedResultsResponseControl.class);
+    when(contextFactory.borrowBindContext()).thenReturn(pagedContext);
+    when(contextFactory.getPageSize()).thenReturn(1);
+    when(pagedContext.getAttributes(eq(""), any(String[].class))).thenReturn(rootDse("100", "dc1"), rootDse("105", "dc1"));
+    when(pagedContext.search(eq("ou=users,dc=example,dc=org"), contains("(uSNChanged>=101)"), any(SearchControls.class)))
+      .thenReturn(new FakeNamingEnumeration(entry("cn=godin,ou=users,dc=example,dc=org", "uid", "godin")), new FakeNamingEnumeration(entry("cn=robby,ou=users,dc=example,dc=org", "uid", "robby")));
+    when(pagedContext.search(eq("ou=groups,dc=example,dc=org"), contains("(uSNChanged>=101)"), any(SearchControls.class)))
+      .thenReturn(new FakeNamingEnumeration());
+    when(pagedContext.getResponseControls()).thenReturn(new Control[] {response});
+    when(response.getCookie()).thenReturn(new byte[] {1}, new byte[0]);
+
+    poller.poll();
+    poller.poll();
+
+    verify(listener).usersChanged("<default>", Arrays.asList("godin", "robby"));
+    verify(listener, never()).groupsChanged(anyString(), any(Collection.class));
+    verify(pagedContext, times(2)).search(eq("ou=users,dc=example,dc=org"), anyString(), any(SearchControls.class));
+    verify(pagedContext, times(2)).setRequestControls(null);
+    verify(contextFactory, times(2)).releaseBindContext(pagedContext, false);
+  }
+
+  @Test
+  public void shouldReportAllChangesOnlyWhenDomainControllerAnswersFirstTime() throws Exception {
+    when(context.getAttributes(eq(""), any(String[].class))).thenReturn(rootDse("100", "dc1"), rootDse("5", "dc2"), rootDse("105", "dc1"), rootDse("8", "dc2"));
+    when(context.search(anyString(), anyString(), any(SearchControls.class))).thenReturn(new FakeNamingEnumeration());
+
+    poller.poll();
+    poller.poll();
+    verify(listener).allChanged("<default>");
+    verify(context, never()).search(anyString(), anyString(), any(SearchControls.class));
+
+    // each domain controller is polled from its own mark
+    poller.poll();
+    poller.poll();
+    verify(listener).allChanged("<default>");
+    verify(context).search(eq("ou=users,dc=example,dc=org"), contains("(uSNChanged>=101)"), any(SearchControls.class));
+    verify(context).search(eq("ou=users,dc=example,dc=org"), contains("(uSNChanged>=6)"), any(SearchControls.class));
+  }
+
+  @Test
+  public void shouldUseModifyTimestampWithoutUsn() throws Exception {
+    when(context.getAttributes(eq(""), any(String[].class))).thenReturn(new BasicAttributes(true));
+    when(context.search(anyString(), contains("(modifyTimestamp>="), any(SearchControls.class)))
+      .thenReturn(new FakeNamingEnumeration(entry("cn=godin,ou=users,dc=example,dc=org", "uid", "godin")), new FakeNamingEnumeration());
+
+    // first poll only remembers current time
+    poller.poll();
+    verifyZeroInteractions(listener);
+
+    poller.poll();
+
+    verify(listener).usersChanged("<default>", Arrays.asList("godin"));
+    verify(listener, never()).groupsChanged(anyString(), any(Collection.class));
+  }
+
+  @Test(timeout = 10000)
+  public void shouldCloseWithoutWaitingForPollInProgress() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch released = new CountDownLatch(1);
+    when(context.getAttributes(eq(""), any(String[].class))).thenAnswer(new Answer<Attributes>() {
+      public Attributes answer(InvocationOnMock invocation) {
+        started.countDown();
+        try {
+          released.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return rootDse("100", "dc1");
+      }
+    });
+    poller.start();
+    started.await();
+    try {
+      poller.close();
+    } finally {
+      released.countDown();
+    }
+
+    poller.poll();
+    verify(contextFactory, times(1)).borrowBindContext();
+  }
+
+  private static BasicAttributes rootDse(String usn, String server) {
+    BasicAttributes attributes = new BasicAttributes(true);
+    attributes.put("highestCommittedUSN", usn);
+    attributes.put("dsServiceName", server);
+    return attributes;
+  }
+
+  private static SearchResult entry(String dn, String attribute, String value) {
+    BasicAttributes attributes = new BasicAttributes(true);
+    attributes.put(attribute, value);
+    SearchResult result = new SearchResult(dn, null, attributes);
+    result.setNameInNamespace(dn);
+    return result;
+  }
+
+}
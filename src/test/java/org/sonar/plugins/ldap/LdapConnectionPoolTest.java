@@ -0,0 +1,166 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.directory.InitialDirContext;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LdapConnectionPoolTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final FakeTicker ticker = new FakeTicker();
+
+  @Test
+  public void shouldReuseReleasedContext() throws Exception {
+    TestPool pool = new TestPool(0, 2, false);
+
+    InitialDirContext context = pool.borrow();
+    assertThat(pool.getActiveCount()).isEqualTo(1);
+    pool.release(context, false);
+    assertThat(pool.getActiveCount()).isEqualTo(0);
+    assertThat(pool.getIdleCount()).isEqualTo(1);
+
+    assertThat(pool.borrow()).isSameAs(context);
+    assertThat(pool.created).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldCloseBrokenContext() throws Exception {
+    TestPool pool = new TestPool(0, 2, false);
+
+    InitialDirContext context = pool.borrow();
+    pool.release(context, true);
+
+    verify(context).close();
+    assertThat(pool.getIdleCount()).isEqualTo(0);
+    assertThat(pool.getActiveCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldDiscardInvalidContextOnBorrow() throws Exception {
+    TestPool pool = new TestPool(0, 2, true);
+
+    InitialDirContext stale = pool.borrow();
+    when(stale.getAttributes(anyString(), any(String[].class))).thenThrow(new CommunicationException());
+    pool.release(stale, false);
+
+    InitialDirContext context = pool.borrow();
+    assertThat(context).isNotSameAs(stale);
+    verify(stale).close();
+    assertThat(pool.created).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldEvictIdleContextsAboveMinSize() throws Exception {
+    TestPool pool = new TestPool(1, 2, false);
+
+    InitialDirContext first = pool.borrow();
+    InitialDirContext second = pool.borrow();
+    pool.release(first, false);
+    pool.release(second, false);
+    assertThat(pool.getIdleCount()).isEqualTo(2);
+
+    ticker.advance(2, TimeUnit.SECONDS);
+    pool.evictIdle();
+
+    assertThat(pool.getIdleCount()).isEqualTo(1);
+    verify(first).close();
+    verify(second, never()).close();
+  }
+
+  @Test
+  public void shouldFillToMinSize() throws Exception {
+    TestPool pool = new TestPool(2, 3, false);
+
+    pool.fill();
+    assertThat(pool.getIdleCount()).isEqualTo(2);
+    assertThat(pool.created).isEqualTo(2);
+
+    // borrowed contexts count towards min size
+    InitialDirContext context = pool.borrow();
+    pool.fill();
+    assertThat(pool.created).isEqualTo(2);
+
+    pool.release(context, true);
+    pool.fill();
+    assertThat(pool.getIdleCount()).isEqualTo(2);
+    assertThat(pool.created).isEqualTo(3);
+  }
+
+  @Test
+  public void shouldFailWhenExhausted() throws Exception {
+    TestPool pool = new TestPool(0, 1, false);
+    pool.borrow();
+
+    thrown.expect(NamingException.class);
+    thrown.expectMessage("Timeout waiting for connection from pool test (maxSize=1)");
+    pool.borrow();
+  }
+
+  @Test
+  public void shouldCloseIdleContextsOnClose() throws Exception {
+    TestPool pool = new TestPool(0, 2, false);
+    InitialDirContext idle = pool.borrow();
+    InitialDirContext active = pool.borrow();
+    pool.release(idle, false);
+
+    pool.close();
+    verify(idle).close();
+
+    pool.release(active, false);
+    verify(active).close();
+
+    thrown.expect(NamingException.class);
+    thrown.expectMessage("Connection pool test is closed");
+    pool.borrow();
+  }
+
+  private class TestPool extends LdapConnectionPool {
+    private int created = 0;
+
+    TestPool(int minSize, int maxSize, boolean validateOnBorrow) {
+      super("test", minSize, maxSize, 10, 1000, validateOnBorrow, ticker);
+    }
+
+    @Override
+    protected InitialDirContext createContext(LdapDeadline deadline) {
+      created++;
+      return mock(InitialDirContext.class);
+    }
+  }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.sonar.api.utils.SonarException;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class LdapDeadlineTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final FakeTicker ticker = new FakeTicker();
+
+  @Test
+  public void shouldFailWhenBudgetSpent() {
+    LdapDeadline deadline = LdapDeadline.start(1000, ticker);
+    ticker.advance(400, TimeUnit.MILLISECONDS);
+    deadline.check("authenticate user godin");
+    assertThat(deadline.remainingMs()).isEqualTo(600L);
+    assertThat(deadline.isExceeded()).isFalse();
+
+    ticker.advance(600, TimeUnit.MILLISECONDS);
+    assertThat(deadline.remainingMs()).isEqualTo(0L);
+    assertThat(deadline.isExceeded()).isTrue();
+    thrown.expect(SonarException.class);
+    thrown.expectMessage("Unable to authenticate user godin: time budget of 1000ms exceeded");
+    deadline.check("authenticate user godin");
+  }
+
+  @Test
+  public void unlimited() {
+    LdapDeadline deadline = LdapDeadline.start(0, ticker);
+    ticker.advance(86400, TimeUnit.SECONDS);
+    deadline.check("authenticate user godin");
+    assertThat(deadline.remainingMs()).isEqualTo(Long.MAX_VALUE);
+    assertThat(deadline.isExceeded()).isFalse();
+  }
+
+  @Test
+  public void shouldReduceTimeoutsToRemainingTime() {
+    LdapDeadline deadline = LdapDeadline.start(1000, ticker);
+    ticker.advance(400, TimeUnit.MILLISECONDS);
+    assertThat(deadline.cap(5000)).isEqualTo(600L);
+    assertThat(deadline.cap(100)).isEqualTo(100L);
+    assertThat(deadline.cap(0)).isEqualTo(600L);
+
+    ticker.advance(1, TimeUnit.SECONDS);
+    assertThat(deadline.cap(5000)).isEqualTo(1L);
+
+    assertThat(LdapDeadline.start(0, ticker).cap(5000)).isEqualTo(5000L);
+    assertThat(LdapDeadline.start(0, ticker).cap(0)).isEqualTo(0L);
+  }
+
+}
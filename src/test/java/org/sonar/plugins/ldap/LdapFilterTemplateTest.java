@@ -0,0 +1,62 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class LdapFilterTemplateTest {
+
+  @Test
+  public void shouldBindParameters() {
+    LdapFilterTemplate template = LdapFilterTemplate.compile("(&(|(memberUid={1})(uniqueMember={0}))(description={1}))");
+
+    assertThat(template.getParameterCount()).isEqualTo(2);
+    assertThat(template.bind("cn=godin,dc=example,dc=org", "godin"))
+      .isEqualTo("(&(|(memberUid=godin)(uniqueMember=cn=godin,dc=example,dc=org))(description=godin))");
+    assertThat(template.getRequest()).isEqualTo("(&(|(memberUid={1})(uniqueMember={0}))(description={1}))");
+  }
+
+  @Test
+  public void shouldEscapeValues() {
+    LdapFilterTemplate template = LdapFilterTemplate.compile("(uid={0})");
+
+    assertThat(template.bind("*)(uid=*")).isEqualTo("(uid=\\2a\\29\\28uid=\\2a)");
+    assertThat(template.bind("back\\slash\0")).isEqualTo("(uid=back\\5cslash\\00)");
+    // parameter in value is not bound again
+    assertThat(template.bind("{0}")).isEqualTo("(uid={0})");
+    assertThat(LdapFilterTemplate.escape(new byte[] {1, (byte) 0xF5})).isEqualTo("\\01\\f5");
+  }
+
+  @Test
+  public void shouldKeepRequestWithoutParameters() {
+    LdapFilterTemplate template = LdapFilterTemplate.compile("(objectClass=*)");
+
+    assertThat(template.getParameterCount()).isEqualTo(0);
+    assertThat(template.bind()).isEqualTo("(objectClass=*)");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldFailWhenParameterMissing() {
+    LdapFilterTemplate.compile("(&(uid={0})(mail={1}))").bind("godin");
+  }
+
+}
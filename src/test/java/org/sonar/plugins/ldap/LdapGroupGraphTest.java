@@ -0,0 +1,95 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.InitialDirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+
+import java.util.Arrays;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LdapGroupGraphTest {
+
+  private static final String BASE_DN = "ou=groups,dc=example,dc=org";
+  private static final String DEVELOPERS = "cn=sonar-developers," + BASE_DN;
+  private static final String TESTERS = "cn=sonar-testers," + BASE_DN;
+  private static final String PARENT = "cn=sonar-parent," + BASE_DN;
+  private static final String USERS = "cn=sonar-users," + BASE_DN;
+
+  private final LdapContextFactory contextFactory = mock(LdapContextFactory.class);
+  private final InitialDirContext context = mock(InitialDirContext.class);
+  private LdapGroupMapping groupMapping;
+
+  @Before
+  public void setUp() throws Exception {
+    Settings settings = new Settings()
+      .setProperty("ldap.group.baseDn", BASE_DN)
+      .setProperty("ldap.group.request", "(&(objectClass=groupOfUniqueNames)(uniqueMember={dn}))")
+      .setProperty("ldap.group.nested", true)
+      .setProperty("ldap.group.nestedMaxDepth", 1);
+    groupMapping = new LdapGroupMapping(settings, "ldap", null, null);
+    when(contextFactory.borrowBindContext(any(LdapDeadline.class))).thenReturn(context);
+  }
+
+  @Test
+  public void shouldEvictOnlyParentsOfModifiedGroup() throws Exception {
+    when(context.search(eq(BASE_DN), contains(DEVELOPERS), any(SearchControls.class)))
+      .thenReturn(new FakeNamingEnumeration(group(PARENT)), new FakeNamingEnumeration(group(PARENT)), new FakeNamingEnumeration(group(PARENT)));
+    when(context.search(eq(BASE_DN), contains(TESTERS), any(SearchControls.class)))
+      .thenReturn(new FakeNamingEnumeration(group(USERS)));
+    LdapGroupGraph graph = new LdapGroupGraph(60000, 100);
+    graph.resolve("<default>", groupMapping, contextFactory, Arrays.asList(group(DEVELOPERS)));
+    graph.resolve("<default>", groupMapping, contextFactory, Arrays.asList(group(TESTERS)));
+    graph.resolve("other", groupMapping, contextFactory, Arrays.asList(group(DEVELOPERS)));
+
+    graph.groupsChanged("<default>", Arrays.asList("CN=sonar-parent," + BASE_DN));
+    assertThat(graph.resolve("<default>", groupMapping, contextFactory, Arrays.asList(group(TESTERS)))).hasSize(2);
+    assertThat(graph.resolve("other", groupMapping, contextFactory, Arrays.asList(group(DEVELOPERS)))).hasSize(2);
+    verify(context, times(1)).search(eq(BASE_DN), contains(TESTERS), any(SearchControls.class));
+    verify(context, times(2)).search(eq(BASE_DN), contains(DEVELOPERS), any(SearchControls.class));
+
+    // previous member might have been removed from modified group
+    assertThat(graph.resolve("<default>", groupMapping, contextFactory, Arrays.asList(group(DEVELOPERS)))).hasSize(2);
+    verify(context, times(3)).search(eq(BASE_DN), contains(DEVELOPERS), any(SearchControls.class));
+  }
+
+  private static SearchResult group(String dn) {
+    BasicAttributes attributes = new BasicAttributes(true);
+    attributes.put("cn", dn.substring(3, dn.indexOf(',')));
+    SearchResult result = new SearchResult(dn, null, attributes);
+    result.setNameInNamespace(dn);
+    return result;
+  }
+
+}
@@ -19,13 +19,20 @@
  */
 package org.sonar.plugins.ldap;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
 import org.sonar.api.config.Settings;
+import org.sonar.api.utils.SonarException;
 
 import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.MapAssert.entry;
 
 public class LdapGroupMappingTest {
 
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
   @Test
   public void defaults() {
     LdapGroupMapping groupMapping = new LdapGroupMapping(new Settings(), "ldap", null, null);
@@ -60,6 +67,52 @@ public class LdapGroupMappingTest {
 
     assertThat(groupMapping.getRequest()).isEqualTo("(&(|(objectClass=posixGroup)(objectClass=groupOfUniqueNames))(|(memberUid={0})(uniqueMember={1})))");
     assertThat(groupMapping.getRequiredUserAttributes()).isEqualTo(new String[] {"uid", "dn"});
+    assertThat(groupMapping.getMemberAttributes()).hasSize(2).includes(entry("memberUid", "uid"), entry("uniqueMember", "dn"));
+    assertThat(groupMapping.getRequestOfAll())
+        .isEqualTo("(&(|(objectClass=posixGroup)(objectClass=groupOfUniqueNames))(|(objectClass=*)(objectClass=*)))");
+  }
+
+  @Test
+  public void nested() {
+    assertThat(new LdapGroupMapping(new Settings(), "ldap", null, null).isNested()).isFalse();
+
+    Settings settings = new Settings()
+        .setProperty("ldap.group.nested", "true")
+        .setProperty("ldap.group.nestedMaxDepth", "3");
+    LdapGroupMapping groupMapping = new LdapGroupMapping(settings, "ldap", null, null);
+
+    assertThat(groupMapping.isNested()).isTrue();
+    assertThat(groupMapping.getNestedMaxDepth()).isEqualTo(3);
+  }
+
+  @Test
+  public void memberOf() throws Exception {
+    LdapGroupMapping defaults = new LdapGroupMapping(new Settings(), "ldap", null, null);
+    assertThat(defaults.getStrategy()).isEqualTo(LdapGroupMapping.Strategy.SEARCH);
+    assertThat(defaults.getUserAttributes()).isEqualTo(new String[] {"dn"});
+
+    Settings settings = new Settings()
+        .setProperty("ldap.group.baseDn", "ou=groups,dc=example,dc=org")
+        .setProperty("ldap.group.strategy", "memberOf");
+    LdapGroupMapping groupMapping = new LdapGroupMapping(settings, "ldap", null, null);
+
+    assertThat(groupMapping.getStrategy()).isEqualTo(LdapGroupMapping.Strategy.MEMBER_OF);
+    assertThat(groupMapping.getMemberOfAttribute()).isEqualTo("memberOf");
+    assertThat(groupMapping.getUserAttributes()).isEqualTo(new String[] {"dn", "memberOf"});
+    assertThat(groupMapping.isUnderBaseDn("CN=sonar-users,OU=Groups,DC=example,DC=org")).isTrue();
+    assertThat(groupMapping.isUnderBaseDn("cn=sonar-users,ou=lists,dc=example,dc=org")).isFalse();
+    assertThat(groupMapping.getIdFromDn("CN=sonar\\, users,ou=groups,dc=example,dc=org")).isEqualTo("sonar, users");
+    assertThat(groupMapping.getIdFromDn("ou=sonar-users,ou=groups,dc=example,dc=org")).isNull();
+  }
+
+  @Test
+  public void unknownStrategy() {
+    Settings settings = new Settings()
+        .setProperty("ldap.group.strategy", "magic");
+
+    thrown.expect(SonarException.class);
+    thrown.expectMessage("Unknown group strategy 'magic' in property 'ldap.group.strategy'");
+    new LdapGroupMapping(settings, "ldap", null, null);
   }
 
 }
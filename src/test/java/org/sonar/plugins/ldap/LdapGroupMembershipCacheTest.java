@@ -0,0 +1,133 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Test;
+import org.sonar.api.utils.SonarException;
+
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class LdapGroupMembershipCacheTest {
+
+  private final FakeTicker ticker = new FakeTicker();
+  private final LdapGroupMembershipCache cache = new LdapGroupMembershipCache(10000, 2000, 10, ticker, MoreExecutors.sameThreadExecutor());
+  private final CountingLoader loader = new CountingLoader();
+
+  @Test
+  public void shouldLoadOnce() {
+    assertThat(cache.get("godin", loader)).containsOnly("sonar-users-1");
+    assertThat(cache.get("godin", loader)).containsOnly("sonar-users-1");
+    assertThat(loader.count).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldRefreshAhead() {
+    cache.get("godin", loader);
+    ticker.advance(9, TimeUnit.SECONDS);
+
+    // stale value is returned, while refresh happens in background
+    assertThat(cache.get("godin", loader)).containsOnly("sonar-users-1");
+    assertThat(loader.count).isEqualTo(2);
+    assertThat(cache.get("godin", loader)).containsOnly("sonar-users-2");
+  }
+
+  @Test
+  public void shouldLoadExpired() {
+    cache.get("godin", loader);
+    ticker.advance(11, TimeUnit.SECONDS);
+
+    assertThat(cache.get("godin", loader)).containsOnly("sonar-users-2");
+  }
+
+  @Test
+  public void shouldKeepEntryWhenRefreshFails() {
+    cache.get("godin", loader);
+    ticker.advance(9, TimeUnit.SECONDS);
+    loader.fail = true;
+
+    assertThat(cache.get("godin", loader)).containsOnly("sonar-users-1");
+    assertThat(cache.get("godin", loader)).containsOnly("sonar-users-1");
+  }
+
+  @Test
+  public void shouldInvalidate() {
+    cache.get("godin", loader);
+    cache.invalidate("godin");
+    cache.get("godin", loader);
+    assertThat(loader.count).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldNotCacheGroupsLoadedBeforeInvalidation() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    LdapGroupMembershipCache cache = new LdapGroupMembershipCache(10000, 2000, 10, ticker, executor);
+    BlockingLoader blockingLoader = new BlockingLoader();
+    cache.get("godin", loader);
+    ticker.advance(9, TimeUnit.SECONDS);
+
+    // refresh reads groups before change, and completes after invalidation
+    cache.get("godin", blockingLoader);
+    blockingLoader.started.await();
+    cache.invalidate("godin");
+    blockingLoader.released.countDown();
+    executor.shutdown();
+    assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(cache.get("godin", loader)).containsOnly("sonar-users-2");
+  }
+
+  private static class BlockingLoader implements Function<String, Collection<String>> {
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch released = new CountDownLatch(1);
+
+    public Collection<String> apply(String login) {
+      started.countDown();
+      try {
+        released.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return ImmutableList.of("sonar-users-before-change");
+    }
+  }
+
+  private static class CountingLoader implements Function<String, Collection<String>> {
+    private int count = 0;
+    private boolean fail = false;
+
+    public Collection<String> apply(String login) {
+      if (fail) {
+        throw new SonarException("Unable to retrieve groups for user " + login);
+      }
+      count++;
+      return ImmutableList.of("sonar-users-" + count);
+    }
+  }
+
+}
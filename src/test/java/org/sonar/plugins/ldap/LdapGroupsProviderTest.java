@@ -19,14 +19,22 @@
  */
 package org.sonar.plugins.ldap;
 
+import com.google.common.collect.Maps;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.sonar.api.config.Settings;
 import org.sonar.plugins.ldap.server.LdapServer;
 
+import javax.naming.NamingException;
+
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Map;
 
 import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class LdapGroupsProviderTest {
 
@@ -87,6 +95,83 @@ public class LdapGroupsProviderTest {
     assertThat(groups).containsOnly("sonar-users", "sonar-developers");
   }
 
+  @Test
+  public void nested() {
+    Settings settings = LdapSettingsFactory.generateSimpleAnonymousAccessSettings(exampleServer, null);
+    settings.setProperty("ldap.group.nested", true);
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    LdapGroupsProvider groupsProvider = new LdapGroupsProvider(settingsManager.getContextFactories(), settingsManager.getUserMappings(), settingsManager.getGroupMappings(),
+      LdapUserCache.disabled(), null, null, 0, settingsManager.createGroupGraph());
+
+    // sonar-parent and sonar-grandparent are members of each other
+    assertThat(groupsProvider.doGetGroups("godin")).containsOnly("sonar-users", "sonar-developers", "sonar-parent", "sonar-grandparent");
+    assertThat(groupsProvider.doGetGroups("tester")).containsOnly("sonar-users", "example-cross-users");
+  }
+
+  @Test
+  public void nestedWithMaxDepth() {
+    Settings settings = LdapSettingsFactory.generateSimpleAnonymousAccessSettings(exampleServer, null);
+    settings.setProperty("ldap.group.nested", true);
+    settings.setProperty("ldap.group.nestedMaxDepth", 1);
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    LdapGroupsProvider groupsProvider = new LdapGroupsProvider(settingsManager.getContextFactories(), settingsManager.getUserMappings(), settingsManager.getGroupMappings(),
+      LdapUserCache.disabled(), null, null, 0, settingsManager.createGroupGraph());
+
+    assertThat(groupsProvider.doGetGroups("godin")).containsOnly("sonar-users", "sonar-developers", "sonar-parent");
+  }
+
+  @Test
+  public void memberOf() {
+    Settings settings = LdapSettingsFactory.generateSimpleAnonymousAccessSettings(exampleServer, null);
+    settings.setProperty("ldap.group.strategy", "memberOf");
+    // attribute with DN syntax, which is available in schema of test server
+    settings.setProperty("ldap.group.memberOfAttribute", "seeAlso");
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    LdapGroupsProvider groupsProvider = new LdapGroupsProvider(settingsManager.getContextFactories(), settingsManager.getUserMappings(), settingsManager.getGroupMappings(),
+      LdapUserCache.disabled(), null, null, 0, settingsManager.createGroupGraph());
+
+    // entry outside of base DN of groups is skipped
+    assertThat(groupsProvider.doGetGroups("godin")).containsOnly("sonar-users", "sonar-developers");
+    assertThat(groupsProvider.doGetGroups("tester")).isEmpty();
+
+    settings.setProperty("ldap.group.nested", true);
+    settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    groupsProvider = new LdapGroupsProvider(settingsManager.getContextFactories(), settingsManager.getUserMappings(), settingsManager.getGroupMappings(),
+      LdapUserCache.disabled(), null, null, 0, settingsManager.createGroupGraph());
+
+    assertThat(groupsProvider.doGetGroups("godin")).containsOnly("sonar-users", "sonar-developers", "sonar-parent", "sonar-grandparent");
+  }
+
+  @Test
+  public void snapshot() throws Exception {
+    Settings settings = LdapSettingsFactory.generateSimpleAnonymousAccessSettings(exampleServer, infosupportServer);
+    settings.setProperty("ldap.example.group.request", "(&(|(objectClass=groupOfUniqueNames)(objectClass=posixGroup))(|(uniqueMember={dn})(memberUid={uid})))");
+    settings.setProperty("ldap.example.group.nested", true);
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    Map<String, LdapContextFactory> contextFactories = Maps.newHashMap(settingsManager.getContextFactories());
+    LdapGroupSnapshot snapshot = new LdapGroupSnapshot(contextFactories, settingsManager.getGroupMappings(), 60000);
+    snapshot.refresh();
+    assertThat(snapshot.getMemoryEstimate()).isGreaterThan(0);
+    assertThat(snapshot.getRefreshDurationMs()).isGreaterThanOrEqualTo(0);
+
+    Map<String, LdapGroupMapping> groupMappings = settingsManager.getGroupMappings();
+    LdapGroupsProvider groupsProvider = new LdapGroupsProvider(contextFactories, settingsManager.getUserMappings(), groupMappings,
+      LdapUserCache.disabled(), null, null, 0, LdapGroupGraph.disabled(), snapshot);
+
+    assertThat(groupsProvider.doGetGroups("godin")).containsOnly("sonar-users", "sonar-developers", "linux-users", "sonar-parent", "sonar-grandparent");
+    assertThat(groupsProvider.doGetGroups("robby")).containsOnly("sonar-users", "sonar-developers");
+    assertThat(groupsProvider.doGetGroups("notfound")).isEmpty();
+
+    // reloaded group replaces previous one, unknown group is ignored
+    long memoryEstimate = snapshot.getMemoryEstimate();
+    snapshot.groupsChanged("example", Arrays.asList("cn=sonar-users,ou=groups,dc=example,dc=org", "cn=unknown,ou=groups,dc=example,dc=org"));
+    assertThat(snapshot.getMemoryEstimate()).isEqualTo(memoryEstimate);
+    assertThat(groupsProvider.doGetGroups("godin")).containsOnly("sonar-users", "sonar-developers", "linux-users", "sonar-parent", "sonar-grandparent");
+    assertThat(groupsProvider.doGetGroups("robby")).containsOnly("sonar-users", "sonar-developers");
+
+    groupsProvider.close();
+  }
+
   @Test
   public void posix() {
     Settings settings = LdapSettingsFactory.generateSimpleAnonymousAccessSettings(exampleServer, null);
@@ -193,6 +278,26 @@ public class LdapGroupsProviderTest {
     groups = groupsProvider.doGetGroups("testerinfo");
     assertThat(groups).containsOnly("sonar-users", "infosupport-cross-users");
   }
-  
-  
+
+  @Test
+  public void multipleLdapWithExternalGroupsSearchedInParallel() throws Exception {
+    Settings settings = LdapSettingsFactory.generateSimpleAnonymousAccessSettings(exampleServer, infosupportServer);
+    settings.setProperty("ldap.example.group.searchServers", "example,infosupport");
+    settings.setProperty("ldap.groups.parallel", true);
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    Map<String, LdapContextFactory> contextFactories = Maps.newHashMap(settingsManager.getContextFactories());
+    LdapGroupsProvider groupsProvider = new LdapGroupsProvider(contextFactories, settingsManager.getUserMappings(), settingsManager.getGroupMappings(),
+      LdapUserCache.disabled(), null, settingsManager.createGroupSearchExecutor(), settingsManager.getGroupSearchTimeout());
+
+    assertThat(groupsProvider.doGetGroups("tester")).containsOnly("sonar-users", "infosupport-cross-users", "example-cross-users");
+
+    // groups from server, which is not available, are skipped
+    LdapContextFactory unavailable = mock(LdapContextFactory.class);
+    when(unavailable.borrowBindContext(any(LdapDeadline.class))).thenThrow(new NamingException("unavailable"));
+    contextFactories.put("infosupport", unavailable);
+    assertThat(groupsProvider.doGetGroups("tester")).containsOnly("sonar-users", "example-cross-users");
+
+    groupsProvider.close();
+  }
+
 }
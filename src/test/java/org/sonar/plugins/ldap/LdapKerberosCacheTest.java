@@ -0,0 +1,99 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import org.junit.Test;
+
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosPrincipal;
+import javax.security.auth.kerberos.KerberosTicket;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class LdapKerberosCacheTest {
+
+  private final FakeTicker ticker = new FakeTicker();
+  private final LdapKerberosCache cache = new LdapKerberosCache(TimeUnit.SECONDS.toMillis(3600), 10, ticker);
+
+  @Test
+  public void shouldRememberOnlySamePassword() {
+    assertThat(cache.isAuthenticated("godin", "secret1")).isFalse();
+
+    cache.authenticated("godin", "secret1", 60000);
+    assertThat(cache.isAuthenticated("godin", "secret1")).isTrue();
+    assertThat(cache.isAuthenticated("godin", "wrong")).isFalse();
+    assertThat(cache.isAuthenticated("godin", null)).isFalse();
+    assertThat(cache.isAuthenticated("tester", "secret1")).isFalse();
+  }
+
+  @Test
+  public void shouldForgetAfterTicketLifetime() {
+    cache.authenticated("godin", "secret1", 60000);
+    ticker.advance(59, TimeUnit.SECONDS);
+    assertThat(cache.isAuthenticated("godin", "secret1")).isTrue();
+    ticker.advance(1, TimeUnit.SECONDS);
+    assertThat(cache.isAuthenticated("godin", "secret1")).isFalse();
+  }
+
+  @Test
+  public void shouldForgetAfterMaxTimeToLive() {
+    cache.authenticated("godin", "secret1", TimeUnit.SECONDS.toMillis(36000));
+    ticker.advance(3601, TimeUnit.SECONDS);
+    assertThat(cache.isAuthenticated("godin", "secret1")).isFalse();
+  }
+
+  @Test
+  public void shouldUseLifetimeOfTicket() {
+    Subject subject = new Subject();
+    subject.getPrivateCredentials().add(createTicket(new Date(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(600))));
+    cache.authenticated("godin", "secret1", subject);
+    assertThat(cache.isAuthenticated("godin", "secret1")).isTrue();
+    ticker.advance(11 * 60, TimeUnit.SECONDS);
+    assertThat(cache.isAuthenticated("godin", "secret1")).isFalse();
+  }
+
+  @Test
+  public void shouldNotRememberWithoutTicket() {
+    cache.authenticated("godin", "secret1", new Subject());
+    assertThat(cache.isAuthenticated("godin", "secret1")).isFalse();
+
+    Subject subject = new Subject();
+    subject.getPrivateCredentials().add(createTicket(new Date(System.currentTimeMillis() - 1000)));
+    cache.authenticated("godin", "secret1", subject);
+    assertThat(cache.isAuthenticated("godin", "secret1")).isFalse();
+  }
+
+  @Test
+  public void shouldInvalidate() {
+    cache.authenticated("godin", "secret1", 60000);
+    cache.invalidate("godin");
+    assertThat(cache.isAuthenticated("godin", "secret1")).isFalse();
+  }
+
+  private static KerberosTicket createTicket(Date endTime) {
+    Date authTime = new Date(endTime.getTime() - TimeUnit.SECONDS.toMillis(36000));
+    return new KerberosTicket(new byte[] {0}, new KerberosPrincipal("godin@EXAMPLE.ORG"), new KerberosPrincipal("krbtgt/EXAMPLE.ORG@EXAMPLE.ORG"),
+      new byte[16], 17, null, authTime, authTime, endTime, null, null);
+  }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class LdapLatencyTest {
+
+  private final FakeTicker ticker = new FakeTicker();
+
+  @Test
+  public void shouldAverageMeasurements() {
+    LdapLatency latency = new LdapLatency(60000, ticker);
+    assertThat(Double.isNaN(latency.getAverage())).isTrue();
+    assertThat(latency.getEstimate(50)).isEqualTo(50.0);
+
+    latency.record(100);
+    assertThat(latency.getEstimate(50)).isEqualTo(100.0);
+    latency.record(200);
+    assertThat(Math.round(latency.getEstimate(50))).isEqualTo(120L);
+  }
+
+  @Test
+  public void shouldDecayTowardsMeanWhenNotUsed() {
+    LdapLatency latency = new LdapLatency(1000, ticker);
+    latency.record(1000);
+
+    ticker.advance(1, TimeUnit.SECONDS);
+    assertThat(Math.round(latency.getEstimate(0))).isEqualTo(368L);
+    assertThat(Math.round(latency.getEstimate(2000))).isEqualTo(1632L);
+    assertThat(latency.getAverage()).isEqualTo(1000.0);
+  }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.InitialDirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class LdapRangedAttributeTest {
+
+  private static final String DN = "cn=large,ou=groups,dc=example,dc=org";
+
+  private final LdapContextFactory contextFactory = mock(LdapContextFactory.class);
+  private final InitialDirContext context = mock(InitialDirContext.class);
+
+  @Before
+  public void setUp() throws Exception {
+    when(contextFactory.borrowBindContext(any(LdapDeadline.class))).thenReturn(context);
+  }
+
+  @Test
+  public void shouldReturnValuesWithoutRange() throws Exception {
+    BasicAttributes attributes = attributes("member", "a", "b");
+
+    assertThat(LdapRangedAttribute.hasMoreValues(attributes, "member")).isFalse();
+    assertThat(values(attributes)).containsExactly("a", "b");
+    assertThat(LdapRangedAttribute.hasMoreValues(attributes, "memberUid")).isFalse();
+    verifyZeroInteractions(contextFactory);
+  }
+
+  @Test
+  public void shouldRequestRemainingRanges() throws Exception {
+    BasicAttributes attributes = attributes("member;range=0-1", "a", "b");
+    when(context.search(eq(DN), eq("(objectClass=*)"), any(Object[].class), any(SearchControls.class)))
+      .thenReturn(results(attributes("member;range=2-3", "c", "d")), results(attributes("member;range=4-*", "e")));
+
+    assertThat(LdapRangedAttribute.hasMoreValues(attributes, "member")).isTrue();
+    assertThat(values(attributes)).containsExactly("a", "b", "c", "d", "e");
+    verify(context, times(2)).search(eq(DN), eq("(objectClass=*)"), any(Object[].class), any(SearchControls.class));
+    verify(contextFactory, times(2)).releaseBindContext(eq(context), eq(false), any(LdapDeadline.class));
+  }
+
+  private List<Object> values(BasicAttributes attributes) throws Exception {
+    List<Object> result = Lists.newArrayList();
+    NamingEnumeration<Object> values = LdapRangedAttribute.getAll(contextFactory, DN, attributes, "member");
+    while (values.hasMore()) {
+      result.add(values.next());
+    }
+    return result;
+  }
+
+  private static BasicAttributes attributes(String id, String... values) {
+    BasicAttribute attribute = new BasicAttribute(id);
+    for (String value : values) {
+      attribute.add(value);
+    }
+    BasicAttributes attributes = new BasicAttributes(true);
+    attributes.put(attribute);
+    return attributes;
+  }
+
+  private static NamingEnumeration<SearchResult> results(BasicAttributes attributes) {
+    SearchResult entry = new SearchResult(DN, null, attributes);
+    entry.setNameInNamespace(DN);
+    return new FakeNamingEnumeration(entry);
+  }
+
+}
@@ -25,14 +25,31 @@ import org.junit.ClassRule;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.sonar.api.config.Settings;
 import org.sonar.plugins.ldap.server.LdapServer;
 
+import javax.naming.CommunicationException;
+import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.directory.InitialDirContext;
 import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.PagedResultsResponseControl;
 
 import java.util.Map;
 
 import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class LdapSearchTest {
 
@@ -108,4 +125,90 @@ public class LdapSearchTest {
     assertThat(search.findUnique()).isNotNull();
   }
 
+  @Test
+  public void pagedSearch() throws Exception {
+    Settings settings = LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null);
+    settings.setProperty("ldap.pageSize", 1);
+    LdapContextFactory contextFactory = new LdapSettingsManager(settings, new LdapAutodiscovery()).getContextFactories().values().iterator().next();
+    LdapSearch search = new LdapSearch(contextFactory)
+      .setBaseDn("dc=example,dc=org")
+      .setRequest("(objectClass={0})")
+      .setParameters("inetOrgPerson")
+      .returns("objectClass");
+
+    assertThat(contextFactory.getPageSize()).isEqualTo(1);
+    assertThat(Iterators.size(Iterators.forEnumeration(search.find()))).isEqualTo(3);
+    // connection is not affected by paging of previous search
+    assertThat(Iterators.size(Iterators.forEnumeration(search.find()))).isEqualTo(3);
+  }
+
+  @Test
+  public void shouldRequestNextPageOnSameConnection() throws Exception {
+    LdapContextFactory contextFactory = mock(LdapContextFactory.class);
+    InitialLdapContext context = mock(InitialLdapContext.class);
+    NamingEnumeration<SearchResult> firstPage = mock(NamingEnumeration.class);
+    NamingEnumeration<SearchResult> secondPage = mock(NamingEnumeration.class);
+    PagedResultsResponseControl response = mock(PagedResultsResponseControl.class);
+    when(contextFactory.borrowBindContext(any(LdapDeadline.class))).thenReturn(context);
+    when(contextFactory.getPageSize()).thenReturn(1);
+    when(context.search(anyString(), anyString(), any(Object[].class), any(SearchControls.class))).thenReturn(firstPage, secondPage);
+    when(context.getResponseControls()).thenReturn(new Control[] {response});
+    when(response.getCookie()).thenReturn(new byte[] {1}, new byte[0]);
+    when(firstPage.hasMore()).thenReturn(true, false);
+    when(firstPage.next()).thenReturn(mock(SearchResult.class));
+    when(secondPage.hasMore()).thenReturn(true, false);
+    when(secondPage.next()).thenReturn(mock(SearchResult.class));
+
+    NamingEnumeration<SearchResult> result = new LdapSearch(contextFactory).setBaseDn("dc=example,dc=org").setRequest("(uid={0})").setParameters("godin").find();
+    assertThat(Iterators.size(Iterators.forEnumeration(result))).isEqualTo(2);
+
+    verify(context, times(2)).search(anyString(), anyString(), any(Object[].class), any(SearchControls.class));
+    verify(firstPage).close();
+    verify(context).setRequestControls(null);
+    verify(contextFactory).releaseBindContext(eq(context), eq(false), any(LdapDeadline.class));
+  }
+
+  @Test
+  public void shouldHoldConnectionUntilResultsConsumed() throws Exception {
+    LdapContextFactory contextFactory = mock(LdapContextFactory.class);
+    InitialDirContext context = mock(InitialDirContext.class);
+    NamingEnumeration<SearchResult> enumeration = mock(NamingEnumeration.class);
+    when(contextFactory.borrowBindContext(any(LdapDeadline.class))).thenReturn(context);
+    when(context.search(anyString(), anyString(), any(Object[].class), any(SearchControls.class))).thenReturn(enumeration);
+    when(enumeration.hasMore()).thenReturn(true, false);
+    when(enumeration.next()).thenReturn(mock(SearchResult.class));
+
+    NamingEnumeration<SearchResult> result = new LdapSearch(contextFactory).setBaseDn("dc=example,dc=org").setRequest("(uid={0})").setParameters("godin").find();
+    assertThat(result.hasMore()).isTrue();
+    result.next();
+    verify(contextFactory, never()).releaseBindContext(eq(context), eq(false), any(LdapDeadline.class));
+
+    assertThat(result.hasMore()).isFalse();
+    verify(enumeration).close();
+    verify(contextFactory).releaseBindContext(eq(context), eq(false), any(LdapDeadline.class));
+
+    // closing after exhaustion does not release twice
+    result.close();
+    verify(contextFactory, times(1)).releaseBindContext(eq(context), eq(false), any(LdapDeadline.class));
+  }
+
+  @Test
+  public void shouldDiscardConnectionOnCommunicationFailure() throws Exception {
+    LdapContextFactory contextFactory = mock(LdapContextFactory.class);
+    InitialDirContext context = mock(InitialDirContext.class);
+    NamingEnumeration<SearchResult> enumeration = mock(NamingEnumeration.class);
+    when(contextFactory.borrowBindContext(any(LdapDeadline.class))).thenReturn(context);
+    when(context.search(anyString(), anyString(), any(Object[].class), any(SearchControls.class))).thenReturn(enumeration);
+    when(enumeration.hasMore()).thenThrow(new CommunicationException());
+
+    NamingEnumeration<SearchResult> result = new LdapSearch(contextFactory).setBaseDn("dc=example,dc=org").setRequest("(uid={0})").setParameters("godin").find();
+    try {
+      result.hasMore();
+      fail();
+    } catch (CommunicationException e) {
+      // expected
+    }
+    verify(contextFactory).releaseBindContext(eq(context), eq(true), any(LdapDeadline.class));
+  }
+
 }
@@ -0,0 +1,90 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import org.junit.Test;
+import org.sonar.plugins.ldap.LdapServerHealth.State;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class LdapServerHealthTest {
+
+  private final Runnable onOpen = mock(Runnable.class);
+
+  @Test
+  public void shouldOpenAfterConsecutiveFailures() {
+    LdapServerHealth health = new LdapServerHealth("ldap://localhost", 2, onOpen);
+
+    health.failure();
+    health.success();
+    health.failure();
+    assertThat(health.isAvailable()).isTrue();
+
+    health.failure();
+    assertThat(health.getState()).isEqualTo(State.OPEN);
+    assertThat(health.isAvailable()).isFalse();
+    verify(onOpen).run();
+
+    health.failure();
+    verify(onOpen).run();
+  }
+
+  @Test
+  public void shouldCloseAfterProbeAndSuccess() {
+    LdapServerHealth health = new LdapServerHealth("ldap://localhost", 1, onOpen);
+    health.failure();
+
+    // probe
+    health.success();
+    assertThat(health.getState()).isEqualTo(State.HALF_OPEN);
+    assertThat(health.isAvailable()).isTrue();
+
+    health.success();
+    assertThat(health.getState()).isEqualTo(State.CLOSED);
+  }
+
+  @Test
+  public void shouldReopenOnFailureAfterProbe() {
+    LdapServerHealth health = new LdapServerHealth("ldap://localhost", 3, onOpen);
+    health.failure();
+    health.failure();
+    health.failure();
+    health.success();
+
+    health.failure();
+    assertThat(health.getState()).isEqualTo(State.OPEN);
+    verify(onOpen, times(2)).run();
+  }
+
+  @Test
+  public void disabled() {
+    LdapServerHealth health = new LdapServerHealth("ldap://localhost", 0, onOpen);
+    for (int i = 0; i < 10; i++) {
+      health.failure();
+    }
+    assertThat(health.isAvailable()).isTrue();
+    verify(onOpen, never()).run();
+  }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.ldap.LdapAutodiscovery.LdapSrvRecord;
+import org.sonar.plugins.ldap.LdapContextFactory.Endpoint;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class LdapServerSelectorTest {
+
+  @Test
+  public void shouldPreferFastestServerWithinPriority() {
+    LdapContextFactory contextFactory = new LdapContextFactory(new Settings(), "ldap", ImmutableList.of(
+      new LdapSrvRecord("ldap://dc1:389", 0, 100),
+      new LdapSrvRecord("ldap://dc2:389", 0, 50),
+      new LdapSrvRecord("ldap://backup:389", 10, 100)), null);
+    List<Endpoint> endpoints = contextFactory.getEndpoints();
+    LdapServerSelector selector = LdapServerSelector.create("latency");
+
+    // not measured yet
+    List<String> order = urls(selector.order(endpoints));
+    assertThat(order).containsOnly("ldap://dc1:389", "ldap://dc2:389", "ldap://backup:389");
+    assertThat(order.get(2)).isEqualTo("ldap://backup:389");
+
+    endpoints.get(0).recordLatency(50000000);
+    endpoints.get(1).recordLatency(1000000);
+    endpoints.get(2).recordLatency(1);
+    assertThat(urls(selector.order(endpoints))).containsExactly("ldap://dc2:389", "ldap://dc1:389", "ldap://backup:389");
+  }
+
+  @Test
+  public void shouldNotPreferServerWithoutMeasurements() {
+    LdapContextFactory contextFactory = new LdapContextFactory(new Settings(), "ldap", ImmutableList.of(
+      new LdapSrvRecord("ldap://dc1:389", 0, 100),
+      new LdapSrvRecord("ldap://dc2:389", 0, 100),
+      new LdapSrvRecord("ldap://dc3:389", 0, 100)), null);
+    List<Endpoint> endpoints = contextFactory.getEndpoints();
+    LdapServerSelector selector = LdapServerSelector.create("latency");
+
+    endpoints.get(0).recordLatency(50000000);
+    endpoints.get(2).recordLatency(1000000);
+    // estimate of dc2 is the mean of dc1 and dc3
+    assertThat(urls(selector.order(endpoints))).containsExactly("ldap://dc3:389", "ldap://dc2:389", "ldap://dc1:389");
+  }
+
+  @Test
+  public void shouldSpreadBetweenServersWithSimilarLatency() {
+    LdapContextFactory contextFactory = new LdapContextFactory(new Settings(), "ldap", ImmutableList.of(
+      new LdapSrvRecord("ldap://dc1:389", 0, 100),
+      new LdapSrvRecord("ldap://dc2:389", 0, 100),
+      new LdapSrvRecord("ldap://dc3:389", 0, 100)), null);
+    List<Endpoint> endpoints = contextFactory.getEndpoints();
+    endpoints.get(0).recordLatency(10000000);
+    endpoints.get(1).recordLatency(11000000);
+    endpoints.get(2).recordLatency(50000000);
+    LdapServerSelector selector = new LdapServerSelector.LatencySelector(new Random(42));
+
+    Multiset<String> first = HashMultiset.create();
+    for (int i = 0; i < 10000; i++) {
+      List<String> order = urls(selector.order(endpoints));
+      assertThat(order.get(2)).isEqualTo("ldap://dc3:389");
+      first.add(order.get(0));
+    }
+    assertThat(first.count("ldap://dc1:389")).isGreaterThan(4500).isLessThan(5500);
+    assertThat(first.count("ldap://dc2:389")).isGreaterThan(4500).isLessThan(5500);
+  }
+
+  @Test
+  public void shouldSpreadProportionallyToWeightWithinPriority() {
+    LdapContextFactory contextFactory = new LdapContextFactory(new Settings(), "ldap", ImmutableList.of(
+      new LdapSrvRecord("ldap://dc1:389", 0, 30),
+      new LdapSrvRecord("ldap://dc2:389", 0, 10),
+      new LdapSrvRecord("ldap://backup:389", 10, 100)), null);
+    LdapServerSelector selector = new LdapServerSelector.WeightedSelector(new Random(42));
+
+    Multiset<String> first = HashMultiset.create();
+    for (int i = 0; i < 10000; i++) {
+      List<String> order = urls(selector.order(contextFactory.getEndpoints()));
+      assertThat(order).hasSize(3);
+      assertThat(order.get(2)).isEqualTo("ldap://backup:389");
+      first.add(order.get(0));
+    }
+    assertThat(first.count("ldap://dc1:389")).isGreaterThan(7000).isLessThan(8000);
+    assertThat(first.count("ldap://dc2:389")).isGreaterThan(2000).isLessThan(3000);
+  }
+
+  @Test(expected = SonarException.class)
+  public void shouldFailOnUnknownStrategy() {
+    Settings settings = new Settings();
+    settings.setProperty("ldap.balancing", "roundrobin");
+    new LdapContextFactory(settings, "ldap", "ldap://localhost:389");
+  }
+
+  private static List<String> urls(List<Endpoint> endpoints) {
+    List<String> result = Lists.newArrayList();
+    for (Endpoint endpoint : endpoints) {
+      result.add(endpoint.getUrl());
+    }
+    return result;
+  }
+
+}
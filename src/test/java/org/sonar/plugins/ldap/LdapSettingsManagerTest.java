@@ -91,7 +91,9 @@ public class LdapSettingsManagerTest {
     when(ldapAutodiscovery.getLdapServers("example.org")).thenReturn(Arrays.asList(ldap1, ldap2));
     LdapSettingsManager settingsManager = new LdapSettingsManager(
       generateAutodiscoverSettings(), ldapAutodiscovery);
-    assertThat(settingsManager.getContextFactories().size()).isEqualTo(2);
+    // discovered servers serve single directory
+    assertThat(settingsManager.getContextFactories().keySet()).containsOnly("<default>");
+    assertThat(settingsManager.getContextFactories().get("<default>").getProviderUrl()).isEqualTo("ldap://localhost:189 ldap://localhost:1899");
   }
 
   @Test
@@ -0,0 +1,136 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.InitialDirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+
+import java.util.Arrays;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LdapSidCacheTest {
+
+  private static final String BASE_DN = "ou=groups,dc=example,dc=org";
+
+  // S-1-5-32-544 (built-in Administrators)
+  private static final byte[] ADMINISTRATORS = {1, 2, 0, 0, 0, 0, 0, 5, 32, 0, 0, 0, 32, 2, 0, 0};
+  // S-1-5-21-1-2-3-1013
+  private static final byte[] DEVELOPERS = {1, 5, 0, 0, 0, 0, 0, 5, 21, 0, 0, 0, 1, 0, 0, 0, 2, 0, 0, 0, 3, 0, 0, 0, (byte) 0xF5, 3, 0, 0};
+  // S-1-5-21-1-2-3-1014
+  private static final byte[] TESTERS = {1, 5, 0, 0, 0, 0, 0, 5, 21, 0, 0, 0, 1, 0, 0, 0, 2, 0, 0, 0, 3, 0, 0, 0, (byte) 0xF6, 3, 0, 0};
+
+  private final LdapContextFactory contextFactory = mock(LdapContextFactory.class);
+  private final InitialDirContext context = mock(InitialDirContext.class);
+  private LdapGroupMapping groupMapping;
+
+  @Before
+  public void setUp() throws Exception {
+    Settings settings = new Settings()
+      .setProperty("ldap.group.baseDn", BASE_DN)
+      .setProperty("ldap.group.request", "(&(objectClass=group)(member={dn}))")
+      .setProperty("ldap.group.strategy", "tokenGroups");
+    groupMapping = new LdapGroupMapping(settings, "ldap", null, null);
+    when(contextFactory.borrowBindContext(any(LdapDeadline.class))).thenReturn(context);
+  }
+
+  @Test
+  public void sidToString() {
+    assertThat(LdapSidCache.toString(ADMINISTRATORS)).isEqualTo("S-1-5-32-544");
+    assertThat(LdapSidCache.toString(DEVELOPERS)).isEqualTo("S-1-5-21-1-2-3-1013");
+  }
+
+  @Test
+  public void shouldSearchForUnknownSidsAtOnce() throws Exception {
+    when(context.search(eq(BASE_DN), anyString(), any(Object[].class), any(SearchControls.class)))
+      .thenReturn(new FakeNamingEnumeration(group("cn=sonar-developers," + BASE_DN, "sonar-developers", DEVELOPERS)));
+    LdapSidCache cache = new LdapSidCache(60000, 100);
+
+    assertThat(cache.resolve("<default>", groupMapping, contextFactory, Arrays.asList(ADMINISTRATORS, DEVELOPERS))).containsOnly("sonar-developers");
+    verify(context).search(eq(BASE_DN),
+      eq("(&(&(objectClass=group)(objectClass=*))(|(objectSid=\\01\\02\\00\\00\\00\\00\\00\\05\\20\\00\\00\\00\\20\\02\\00\\00)"
+        + "(objectSid=\\01\\05\\00\\00\\00\\00\\00\\05\\15\\00\\00\\00\\01\\00\\00\\00\\02\\00\\00\\00\\03\\00\\00\\00\\f5\\03\\00\\00)))"),
+      any(Object[].class), any(SearchControls.class));
+
+    // SID, which is not a group of mapping, is remembered as well
+    assertThat(cache.resolve("<default>", groupMapping, contextFactory, Arrays.asList(ADMINISTRATORS, DEVELOPERS))).containsOnly("sonar-developers");
+    verify(context, times(1)).search(anyString(), anyString(), any(Object[].class), any(SearchControls.class));
+
+    cache.groupsChanged("<default>", Arrays.asList("cn=sonar-developers," + BASE_DN));
+    cache.resolve("<default>", groupMapping, contextFactory, Arrays.asList(DEVELOPERS));
+    verify(context, times(2)).search(anyString(), anyString(), any(Object[].class), any(SearchControls.class));
+  }
+
+  @Test
+  public void shouldEvictOnlyModifiedGroups() throws Exception {
+    when(context.search(eq(BASE_DN), anyString(), any(Object[].class), any(SearchControls.class)))
+      .thenReturn(new FakeNamingEnumeration(group("cn=sonar-developers," + BASE_DN, "sonar-developers", DEVELOPERS), group("cn=sonar-testers," + BASE_DN, "sonar-testers", TESTERS)))
+      .thenReturn(new FakeNamingEnumeration(group("cn=sonar-developers," + BASE_DN, "sonar-devs", DEVELOPERS)));
+    LdapSidCache cache = new LdapSidCache(60000, 100);
+    cache.resolve("<default>", groupMapping, contextFactory, Arrays.asList(ADMINISTRATORS, DEVELOPERS, TESTERS));
+
+    cache.groupsChanged("<default>", Arrays.asList("CN=sonar-developers," + BASE_DN));
+    assertThat(cache.resolve("<default>", groupMapping, contextFactory, Arrays.asList(ADMINISTRATORS, TESTERS))).containsOnly("sonar-testers");
+    verify(context, times(1)).search(anyString(), anyString(), any(Object[].class), any(SearchControls.class));
+
+    assertThat(cache.resolve("<default>", groupMapping, contextFactory, Arrays.asList(DEVELOPERS))).containsOnly("sonar-devs");
+    verify(context, times(2)).search(anyString(), anyString(), any(Object[].class), any(SearchControls.class));
+  }
+
+  @Test
+  public void shouldEvictSidsOfOtherEntriesWhenUnknownGroupModified() throws Exception {
+    when(context.search(eq(BASE_DN), anyString(), any(Object[].class), any(SearchControls.class)))
+      .thenReturn(new FakeNamingEnumeration(group("cn=sonar-developers," + BASE_DN, "sonar-developers", DEVELOPERS)))
+      .thenReturn(new FakeNamingEnumeration(group("cn=administrators," + BASE_DN, "administrators", ADMINISTRATORS)));
+    LdapSidCache cache = new LdapSidCache(60000, 100);
+    cache.resolve("<default>", groupMapping, contextFactory, Arrays.asList(ADMINISTRATORS, DEVELOPERS));
+
+    // group might start to match request of mapping
+    cache.groupsChanged("<default>", Arrays.asList("cn=administrators," + BASE_DN));
+    assertThat(cache.resolve("<default>", groupMapping, contextFactory, Arrays.asList(ADMINISTRATORS, DEVELOPERS)))
+      .containsOnly("administrators", "sonar-developers");
+    verify(context).search(eq(BASE_DN),
+      eq("(&(&(objectClass=group)(objectClass=*))(|(objectSid=\\01\\02\\00\\00\\00\\00\\00\\05\\20\\00\\00\\00\\20\\02\\00\\00)))"),
+      any(Object[].class), any(SearchControls.class));
+  }
+
+  private static SearchResult group(String dn, String cn, byte[] sid) {
+    BasicAttributes attributes = new BasicAttributes(true);
+    attributes.put("cn", cn);
+    attributes.put("objectSid", sid);
+    SearchResult result = new SearchResult(dn, null, attributes);
+    result.setNameInNamespace(dn);
+    return result;
+  }
+
+}
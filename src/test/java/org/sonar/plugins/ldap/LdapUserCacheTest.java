@@ -0,0 +1,142 @@
+/*
+ * Sonar LDAP Plugin
+ * Copyright (C) 2009 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.ldap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.ldap.server.LdapServer;
+
+import javax.naming.directory.SearchResult;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class LdapUserCacheTest {
+
+  @ClassRule
+  public static LdapServer server = new LdapServer("/users.example.org.ldif");
+
+  private final FakeTicker ticker = new FakeTicker();
+
+  @Test
+  public void shouldRememberServerAndDn() {
+    LdapUserCache cache = new LdapUserCache(1000, 10, ticker);
+    cache.put("godin", "example", "cn=Evgeny Mandrikov,ou=users,dc=example,dc=org");
+
+    assertThat(cache.get("godin").getServerKey()).isEqualTo("example");
+    assertThat(cache.get("godin").getDn()).isEqualTo("cn=Evgeny Mandrikov,ou=users,dc=example,dc=org");
+    assertThat(cache.orderServerKeys("godin", ImmutableList.of("infosupport", "example"))).containsExactly("example", "infosupport");
+    assertThat(cache.orderServerKeys("tester", ImmutableList.of("infosupport", "example"))).containsExactly("infosupport", "example");
+
+    ticker.advance(2, TimeUnit.SECONDS);
+    assertThat(cache.get("godin")).isNull();
+  }
+
+  @Test
+  public void shouldRememberFirstServerInConfiguredOrder() {
+    Map<String, String[]> entryAttributes = ImmutableMap.of("example", new String[0], "infosupport", new String[0]);
+    LdapUserCache cache = new LdapUserCache(1000, 0, 10, entryAttributes, ticker);
+
+    cache.put("godin", "infosupport", "cn=Evgeny Mandrikov,ou=users,dc=infosupport,dc=com");
+    cache.put("godin", "example", "cn=Evgeny Mandrikov,ou=users,dc=example,dc=org");
+    assertThat(cache.get("godin").getServerKey()).isEqualTo("example");
+
+    // parallel search on second server completes last
+    cache.put("godin", "infosupport", "cn=Evgeny Mandrikov,ou=users,dc=infosupport,dc=com");
+    assertThat(cache.get("godin").getServerKey()).isEqualTo("example");
+    assertThat(cache.orderServerKeys("godin", ImmutableList.of("example", "infosupport"))).containsExactly("example", "infosupport");
+
+    // user moved on the same server
+    cache.put("godin", "example", "cn=godin,ou=users,dc=example,dc=org");
+    assertThat(cache.get("godin").getDn()).isEqualTo("cn=godin,ou=users,dc=example,dc=org");
+  }
+
+  @Test
+  public void disabled() {
+    LdapUserCache cache = LdapUserCache.disabled();
+    cache.put("godin", "example", "cn=Evgeny Mandrikov,ou=users,dc=example,dc=org");
+
+    assertThat(cache.isEnabled()).isFalse();
+    assertThat(cache.get("godin")).isNull();
+  }
+
+  @Test
+  public void shouldApplyRequestToKnownUser() throws Exception {
+    Settings settings = LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null);
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    LdapContextFactory contextFactory = settingsManager.getContextFactories().get("<default>");
+    LdapUserCache cache = new LdapUserCache(1000, 10, ticker);
+
+    SearchResult result = cache.find("<default>", settingsManager.getUserMappings().get("<default>"), contextFactory, "godin", "dn");
+    assertThat(cache.get("godin").getDn()).isEqualTo(result.getNameInNamespace());
+
+    // user doesn't match request anymore, for example was disabled
+    settings.setProperty("ldap.user.request", "(&(objectClass=inetOrgPerson)(uid={login})(employeeType=active))");
+    LdapUserMapping userMapping = new LdapUserMapping(settings, "ldap");
+    assertThat(cache.find("<default>", userMapping, contextFactory, "godin", "dn")).isNull();
+    assertThat(cache.get("godin")).isNull();
+  }
+
+  @Test
+  public void shouldLookupKnownUserByDn() throws Exception {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null), new LdapAutodiscovery());
+    Map<String, LdapContextFactory> contextFactories = settingsManager.getContextFactories();
+    LdapUserMapping userMapping = settingsManager.getUserMappings().get("<default>");
+    LdapUserCache cache = new LdapUserCache(1000, 10, ticker);
+
+    SearchResult result = cache.find("<default>", userMapping, contextFactories.get("<default>"), "godin", "cn");
+    String dn = result.getNameInNamespace();
+    assertThat(cache.get("godin").getDn()).isEqualTo(dn);
+
+    result = cache.find("<default>", userMapping, contextFactories.get("<default>"), "godin", "cn");
+    assertThat(result.getNameInNamespace()).isEqualTo(dn);
+    assertThat(result.getAttributes().get("cn").get()).isEqualTo("Evgeny Mandrikov");
+
+    // outdated DN
+    cache.put("godin", "<default>", "cn=unknown,ou=users,dc=example,dc=org");
+    result = cache.find("<default>", userMapping, contextFactories.get("<default>"), "godin", "cn");
+    assertThat(result.getNameInNamespace()).isEqualTo(dn);
+    assertThat(cache.get("godin").getDn()).isEqualTo(dn);
+  }
+
+  @Test
+  public void shouldFetchEntryOnceForLogin() throws Exception {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null), new LdapAutodiscovery());
+    LdapContextFactory contextFactory = settingsManager.getContextFactories().get("<default>");
+    LdapUserMapping userMapping = settingsManager.getUserMappings().get("<default>");
+    LdapUserCache cache = new LdapUserCache(0, 1000, 10, ImmutableMap.of("<default>", new String[] {"cn", "mail"}), ticker);
+
+    SearchResult result = cache.find("<default>", userMapping, contextFactory, "godin");
+    assertThat(result.getAttributes().get("cn").get()).isEqualTo("Evgeny Mandrikov");
+    assertThat(cache.find("<default>", userMapping, contextFactory, "godin", "mail", "dn")).isSameAs(result);
+
+    // attribute was not fetched
+    assertThat(cache.find("<default>", userMapping, contextFactory, "godin", "uid")).isNotSameAs(result);
+
+    ticker.advance(2, TimeUnit.SECONDS);
+    assertThat(cache.find("<default>", userMapping, contextFactory, "godin", "mail")).isNotSameAs(result);
+  }
+
+}
@@ -22,6 +22,8 @@ package org.sonar.plugins.ldap;
 import org.junit.Test;
 import org.sonar.api.config.Settings;
 
+import javax.naming.directory.SearchControls;
+
 import static org.fest.assertions.Assertions.assertThat;
 
 public class LdapUserMappingTest {
@@ -54,6 +56,8 @@ public class LdapUserMappingTest {
     assertThat(search.getRequest()).isEqualTo("(&(objectClass=user)(sAMAccountName={0}))");
     assertThat(search.getParameters()).isEqualTo(new String[] {"tester"});
     assertThat(search.getReturningAttributes()).isNull();
+    assertThat(userMapping.getLoginAttribute()).isEqualTo("sAMAccountName");
+    assertThat(userMapping.getRequestOfAll()).isEqualTo("(&(objectClass=user)(sAMAccountName=*))");
 
     assertThat(userMapping.toString()).isEqualTo("LdapUserMapping{" +
       "baseDn=cn=users," +
@@ -62,6 +66,16 @@ public class LdapUserMappingTest {
       " emailAttribute=mail}");
   }
 
+  @Test
+  public void searchByDn() {
+    LdapUserMapping userMapping = new LdapUserMapping(new Settings(), "ldap");
+    LdapSearch search = userMapping.createSearchByDn(null, "cn=tester,ou=users,dc=example,dc=org");
+    assertThat(search.getBaseDn()).isEqualTo("cn=tester,ou=users,dc=example,dc=org");
+    assertThat(search.getScope()).isEqualTo(SearchControls.OBJECT_SCOPE);
+    assertThat(search.getRequest()).isEqualTo("(&(objectClass=inetOrgPerson)(uid=*))");
+    assertThat(search.getParameters()).isEmpty();
+  }
+
   @Test
   public void realm() {
     Settings settings = new Settings()